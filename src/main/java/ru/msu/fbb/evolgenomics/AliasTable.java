@@ -0,0 +1,105 @@
+/**
+ * Walker's alias table for drawing from a discrete distribution in O(1)
+ * (built with Vose's algorithm in O(n)).
+ * The table can be rebuilt in place for new weights, so neither rebuilding
+ * nor drawing allocates any memory.
+ */
+public class AliasTable{
+    private double[] prob; //probability of keeping column i (rather than jumping to alias[i])
+    private int[] alias;
+    private int n;
+    //work space for the construction
+    private int[] small;
+    private int[] large;
+    private double[] scaled;
+
+    /**
+     * Create an (empty) table for distributions on n elements
+     * @param n the number of elements
+     */
+    public AliasTable(int n){
+	this.n = n;
+	prob = new double[n];
+	alias = new int[n];
+	small = new int[n];
+	large = new int[n];
+	scaled = new double[n];
+    }
+
+    /**
+     * Create a table for the distribution given by the (not necessarily normalized) weights
+     * @param weights the nonnegative weights of the elements
+     */
+    public AliasTable(double[] weights){
+	this(weights.length);
+	build(weights);
+    }
+
+    /**
+     * Create a copy of another table
+     * @param orig the table to copy
+     */
+    public AliasTable(AliasTable orig){
+	this(orig.n);
+	System.arraycopy(orig.prob, 0, prob, 0, n);
+	System.arraycopy(orig.alias, 0, alias, 0, n);
+    }
+
+    /**
+     * (Re)build the table for the distribution given by the (not necessarily normalized) weights
+     * @param weights the nonnegative weights of the elements; must have the length of the table
+     */
+    public void build(double[] weights){
+	double sum = 0;
+	for (int i = 0; i < n; i++){
+	    if (weights[i] < 0)
+		throw new IllegalArgumentException("negative probability: " + weights[i]);
+	    sum += weights[i];
+	}
+	if (!(sum > 0))
+	    throw new IllegalArgumentException("weights do not define a distribution: " + java.util.Arrays.toString(weights));
+	int numSmall = 0, numLarge = 0;
+	for (int i = 0; i < n; i++){
+	    scaled[i] = weights[i] * n / sum;
+	    if (scaled[i] < 1.0)
+		small[numSmall++] = i;
+	    else
+		large[numLarge++] = i;
+	}
+	while (numSmall > 0 && numLarge > 0){
+	    int s = small[--numSmall];
+	    int l = large[--numLarge];
+	    prob[s] = scaled[s];
+	    alias[s] = l;
+	    scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+	    if (scaled[l] < 1.0)
+		small[numSmall++] = l;
+	    else
+		large[numLarge++] = l;
+	}
+	//whatever is left is 1 up to roundoff
+	while (numLarge > 0){
+	    int l = large[--numLarge];
+	    prob[l] = 1.0;
+	    alias[l] = l;
+	}
+	while (numSmall > 0){
+	    int s = small[--numSmall];
+	    prob[s] = 1.0;
+	    alias[s] = s;
+	}
+    }
+
+    /**
+     * Draw an element
+     * @param random the RandomNumberGenerator object providing the RNG to be used
+     * @return the index of the drawn element
+     */
+    public int sample(RandomNumberGenerator random){
+	double u = random.nextDouble() * n;
+	int i = (int)u;
+	if (i >= n) //can't happen unless nextDouble() returns 1.0, but let's be safe
+	    i = n-1;
+	return (u - i < prob[i]) ? i : alias[i];
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * EventSampler exploiting the fact that the substitution rate of a position depends
+ * only on its current allele: the total rate is \Sum_a count[a] * q_a, where q_a = -Q[a][a].
+ * The next event is drawn by first picking the allele class (or the landscape change)
+ * in O(alphabetSize), and then a uniformly random position holding that allele.
+ * The positions of each allele are kept in an indexable set, so a substitution is
+ * registered in O(1), and a landscape change only requires recomputing the alphabetSize
+ * allele rates.
+ */
+public class AlleleClassEventSampler implements EventSampler{
+    private int seqLength;
+    private int alphabetSize;
+    private int[][] sites;   //sites[a][0..count[a]-1] are the positions holding allele a
+    private int[] count;     //the number of positions holding each allele
+    private int[] slot;      //slot[i] is the index of position i in sites[seq[i]]
+    private double[] alleleRate; //q_a = -Q[a][a] for each allele a
+    private double landscapeChangeRate;
+    private double sumRates;
+
+    /**
+     * @param seqLength the sequence length
+     * @param alphabetSize the size of the allele alphabet
+     */
+    public AlleleClassEventSampler(int seqLength, int alphabetSize){
+	this.seqLength = seqLength;
+	this.alphabetSize = alphabetSize;
+	sites = new int[alphabetSize][];
+	count = new int[alphabetSize];
+	slot = new int[seqLength];
+	alleleRate = new double[alphabetSize];
+    }
+
+    private AlleleClassEventSampler(AlleleClassEventSampler orig){
+	seqLength = orig.seqLength;
+	alphabetSize = orig.alphabetSize;
+	sites = new int[alphabetSize][];
+	for (int a = 0; a < alphabetSize; a++)
+	    sites[a] = java.util.Arrays.copyOf(orig.sites[a], orig.sites[a].length);
+	count = java.util.Arrays.copyOf(orig.count, alphabetSize);
+	slot = java.util.Arrays.copyOf(orig.slot, seqLength);
+	alleleRate = java.util.Arrays.copyOf(orig.alleleRate, alphabetSize);
+	landscapeChangeRate = orig.landscapeChangeRate;
+	sumRates = orig.sumRates;
+    }
+
+    public void computeRates(PackedSeq seq, Landscape landscape, double landscapeChangeRate){
+	//the position sets only need to be built once: afterwards they are maintained
+	//by registerSubstitution, and a landscape change does not move any positions
+	if (sites[0] == null)
+	    buildSiteSets(seq);
+	for (int a = 0; a < alphabetSize; a++)
+	    alleleRate[a] = -landscape.Qat(a,a);
+	this.landscapeChangeRate = landscapeChangeRate;
+	computeSumRates();
+    }
+
+    /**
+     * Fill the position sets of all alleles from the sequence
+     * @param seq the sequence of allele indices
+     */
+    private void buildSiteSets(PackedSeq seq){
+	java.util.Arrays.fill(count, 0);
+	for (int i = 0; i < seqLength; i++)
+	    count[seq.get(i)]++;
+	for (int a = 0; a < alphabetSize; a++)
+	    sites[a] = new int[Math.max(count[a], 4)];
+	java.util.Arrays.fill(count, 0);
+	for (int i = 0; i < seqLength; i++){
+	    int a = seq.get(i);
+	    slot[i] = count[a];
+	    sites[a][count[a]++] = i;
+	}
+    }
+
+    /**
+     * Recompute the total rate from the allele counts (O(alphabetSize), so there is no drift)
+     */
+    private void computeSumRates(){
+	double sum = landscapeChangeRate;
+	for (int a = 0; a < alphabetSize; a++)
+	    sum += count[a] * alleleRate[a];
+	sumRates = sum;
+    }
+
+    public void registerSubstitution(int position, byte oldChar, byte newChar, Landscape landscape){
+	//remove the position from the old allele's set by moving the last element into its slot
+	int last = sites[oldChar][--count[oldChar]];
+	sites[oldChar][slot[position]] = last;
+	slot[last] = slot[position];
+	//append it to the new allele's set
+	if (count[newChar] == sites[newChar].length)
+	    sites[newChar] = java.util.Arrays.copyOf(sites[newChar], 2*sites[newChar].length);
+	slot[position] = count[newChar];
+	sites[newChar][count[newChar]++] = position;
+	computeSumRates();
+    }
+
+    public double getSumRates(){return sumRates;}
+
+    public int sample(RandomNumberGenerator random){
+	double r = random.nextDouble() * sumRates;
+	int chosen = -1;
+	for (int a = 0; a < alphabetSize; a++){
+	    if (count[a] == 0)
+		continue;
+	    chosen = a;
+	    r -= count[a] * alleleRate[a];
+	    if (r < 0)
+		break;
+	}
+	if (r >= 0 && landscapeChangeRate > 0) //what's left is the landscape change
+	    return seqLength;
+	//(if roundoff took us past the end without a landscape change, chosen is the last nonempty class)
+	return sites[chosen][random.nextInt(count[chosen])];
+    }
+
+    public EventSampler copy(){
+	return new AlleleClassEventSampler(this);
+    }
+}
@@ -11,6 +11,7 @@ public class BasicNode{
     private ArrayList<BasicNode> children;
     private double length; //length of the branch leading to this node
     private String name;
+    private int id; //the index of the node in the preorder of its tree
     private double depth ;  //longest from node path to beginning
     private double depthFromRoot ;  //longest from node path to root
     private double longestPathDown; //longest path from node to its furtherst leaf descendant
@@ -20,6 +21,11 @@ public class BasicNode{
      * @return the node name
      */
     public String getName(){return name;}
+    /**
+     * @return the index of the node in the preorder of its tree (0 for root)
+     */
+    public int getId(){return id;}
+    void setId(int id){this.id = id;}
     /**
      * @return the distance from this node to root
      */
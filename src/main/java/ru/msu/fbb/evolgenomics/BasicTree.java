@@ -14,6 +14,7 @@ public class BasicTree{
     private final BasicNode root;
     //    private int numNodes;
     private ArrayList<BasicNode> leaves = new ArrayList<BasicNode>(); 
+    private int numNodesBuilt = 0; //the next preorder node id
 
     //access methods
     /**
@@ -27,6 +28,12 @@ public class BasicTree{
      */
     public int getNumNodes(){return name2node.size();}
 
+    /**
+     * @return the number of nodes built (which is more than getNumNodes() if some names repeat);
+     * the node ids are 0..getNumNodesBuilt()-1
+     */
+    public int getNumNodesBuilt(){return numNodesBuilt;}
+
     /**
      * @return the tree height (longest path from root to a leaf)
      */
@@ -90,6 +97,7 @@ public class BasicTree{
     private BasicNode buildTreeFromParserRec(Tree tjTree, TreeNode tjNode, BasicNode myParent){
 	int numChildren = tjNode.numberChildren();
 	BasicNode myNode = new BasicNode(tjNode.getName(), myParent, tjNode.getWeight(), numChildren);
+	myNode.setId(numNodesBuilt++);
 	name2node.put(tjNode.getName(), myNode);
 	double longestPathDown = 0;
 	double volume = 0;
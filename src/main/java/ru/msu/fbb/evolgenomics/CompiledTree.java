@@ -0,0 +1,258 @@
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The read-only, array-based form of the phylogenetic tree that the simulation runs on.
+ * The nodes are numbered 0..numNodes-1 in preorder (the root is 0, and the ids are those of
+ * BasicNode.getId()), and everything about node v is at index v of a primitive array;
+ * the children of v are children[childStart[v]] .. children[childStart[v+1]-1], in the order
+ * of the tree file.
+ * Node names are only used for input and output: they are resolved to ids once, when the tree is
+ * loaded, and all the per-node data of a simulation instance is kept in arrays indexed by id.
+ *
+ * @see NewickReader
+ */
+public class CompiledTree{
+    private final int numNodes;
+    private final String[] names;
+    private final int[] parent; //-1 for the root
+    private final int[] childStart; //of length numNodes+1
+    private final int[] children;
+    private final double[] branchLength; //length of the branch leading to the node
+    private final double[] depth; //distance from the beginning of the root branch (see BasicNode.getDepth())
+    private final double[] longestPathDown; //longest path from the node to a leaf descendant
+    private final double[] subtreeVolume; //sum of the branch lengths of the subtree rooted at the node
+    private final int numLeaves;
+    //the nodes in the order of the output files (each name once, in the iteration order
+    //of the name map, which is the order the output has always had)
+    private final int[] outputOrder;
+    private Map<String, Integer> name2id; //built on the first lookup if the tree is loaded from a CompiledTreeFile
+
+    /**
+     * Build the tree from its nodes in preorder
+     * @param names the node names
+     * @param parent the parent of each node (-1 for the root, which must be node 0);
+     * a node's parent precedes it and the children of a node are in the order of the tree file
+     * @param branchLength the length of the branch leading to each node
+     */
+    public CompiledTree(String[] names, int[] parent, double[] branchLength){
+	numNodes = names.length;
+	if (numNodes == 0 || parent[0] != -1)
+	    throw new IllegalArgumentException("node 0 must be the root");
+	this.names = names;
+	this.parent = parent;
+	this.branchLength = branchLength;
+	//children in CSR form
+	childStart = new int[numNodes + 1];
+	for (int v = 1; v < numNodes; v++){
+	    if (parent[v] < 0 || parent[v] >= v)
+		throw new IllegalArgumentException("node " + v + " does not follow its parent in preorder");
+	    childStart[parent[v] + 1]++;
+	}
+	for (int v = 0; v < numNodes; v++)
+	    childStart[v + 1] += childStart[v];
+	children = new int[numNodes - 1];
+	int[] next = Arrays.copyOf(childStart, numNodes);
+	int leaves = 0;
+	depth = new double[numNodes];
+	depth[0] = branchLength[0];
+	for (int v = 1; v < numNodes; v++){
+	    children[next[parent[v]]++] = v;
+	    depth[v] = branchLength[v] + depth[parent[v]];
+	}
+	//bottom-up, adding the children in the same order as BasicTree does
+	longestPathDown = new double[numNodes];
+	subtreeVolume = new double[numNodes];
+	for (int v = numNodes - 1; v >= 0; v--){
+	    if (childStart[v] == childStart[v + 1])
+		leaves++;
+	    double longest = 0;
+	    double volume = 0;
+	    for (int k = childStart[v]; k < childStart[v + 1]; k++){
+		int c = children[k];
+		double pathDownThroughChild = branchLength[c] + longestPathDown[c];
+		if (pathDownThroughChild > longest)
+		    longest = pathDownThroughChild;
+		volume += branchLength[c] + subtreeVolume[c];
+	    }
+	    longestPathDown[v] = longest;
+	    subtreeVolume[v] = volume;
+	}
+	numLeaves = leaves;
+	buildNameMap();
+	outputOrder = new int[name2id.size()];
+	int k = 0;
+	for (int v : name2id.values())
+	    outputOrder[k++] = v;
+    }
+
+    /**
+     * Build the name lookup, for resolving names given in the input; a repeated name stands for its last node
+     */
+    private void buildNameMap(){
+	name2id = new HashMap<String, Integer>(numNodes);
+	for (int v = 0; v < numNodes; v++)
+	    name2id.put(names[v], v);
+    }
+
+    /**
+     * Build the tree from the arrays of a tree written by writeTo(), with nothing to recompute
+     */
+    private CompiledTree(String[] names, int[] parent, int[] childStart, int[] children, double[] branchLength,
+			 double[] depth, double[] longestPathDown, double[] subtreeVolume, int numLeaves, int[] outputOrder){
+	numNodes = names.length;
+	this.names = names;
+	this.parent = parent;
+	this.childStart = childStart;
+	this.children = children;
+	this.branchLength = branchLength;
+	this.depth = depth;
+	this.longestPathDown = longestPathDown;
+	this.subtreeVolume = subtreeVolume;
+	this.numLeaves = numLeaves;
+	this.outputOrder = outputOrder;
+    }
+
+    /**
+     * Write the tree in binary form: the node arrays as they are, and the names as a string table
+     * (the end offset of each name, then the names in UTF-8)
+     * @param out the stream to write to
+     */
+    void writeTo(DataOutputStream out) throws IOException{
+	Charset utf8 = Charset.forName("UTF-8");
+	out.writeInt(numNodes);
+	out.writeInt(numLeaves);
+	out.writeInt(outputOrder.length);
+	writeInts(out, parent);
+	writeInts(out, childStart);
+	writeInts(out, children);
+	writeInts(out, outputOrder);
+	writeDoubles(out, branchLength);
+	writeDoubles(out, depth);
+	writeDoubles(out, longestPathDown);
+	writeDoubles(out, subtreeVolume);
+	byte[][] encoded = new byte[numNodes][];
+	int end = 0;
+	for (int v = 0; v < numNodes; v++){
+	    encoded[v] = names[v].getBytes(utf8);
+	    end += encoded[v].length;
+	    out.writeInt(end);
+	}
+	for (int v = 0; v < numNodes; v++)
+	    out.write(encoded[v]);
+    }
+
+    /**
+     * Read a tree written by writeTo()
+     * @param in the buffer holding the tree, at its beginning
+     * @return the tree
+     */
+    static CompiledTree readFrom(ByteBuffer in){
+	Charset utf8 = Charset.forName("UTF-8");
+	int numNodes = in.getInt();
+	int numLeaves = in.getInt();
+	int numOutput = in.getInt();
+	if (numNodes <= 0 || numLeaves <= 0 || numOutput <= 0)
+	    throw new IllegalArgumentException("bad tree sizes");
+	int[] parent = readInts(in, numNodes);
+	int[] childStart = readInts(in, numNodes + 1);
+	int[] children = readInts(in, numNodes - 1);
+	int[] outputOrder = readInts(in, numOutput);
+	double[] branchLength = readDoubles(in, numNodes);
+	double[] depth = readDoubles(in, numNodes);
+	double[] longestPathDown = readDoubles(in, numNodes);
+	double[] subtreeVolume = readDoubles(in, numNodes);
+	int[] nameEnd = readInts(in, numNodes);
+	byte[] table = new byte[nameEnd[numNodes - 1]];
+	in.get(table);
+	String[] names = new String[numNodes];
+	for (int v = 0, start = 0; v < numNodes; start = nameEnd[v++])
+	    names[v] = new String(table, start, nameEnd[v] - start, utf8);
+	return new CompiledTree(names, parent, childStart, children, branchLength,
+				depth, longestPathDown, subtreeVolume, numLeaves, outputOrder);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] a) throws IOException{
+	for (int x : a)
+	    out.writeInt(x);
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] a) throws IOException{
+	for (double x : a)
+	    out.writeDouble(x);
+    }
+
+    private static int[] readInts(ByteBuffer in, int n){
+	int[] a = new int[n];
+	in.asIntBuffer().get(a);
+	in.position(in.position() + 4*n);
+	return a;
+    }
+
+    private static double[] readDoubles(ByteBuffer in, int n){
+	double[] a = new double[n];
+	in.asDoubleBuffer().get(a);
+	in.position(in.position() + 8*n);
+	return a;
+    }
+
+    /*** access methods ***/
+
+    /**
+     * @return the number of tree nodes (internal and leaves)
+     */
+    public int getNumNodes(){return numNodes;}
+    public int getNumLeaves(){return numLeaves;}
+    public int getRoot(){return 0;}
+    public String getName(int v){return names[v];}
+    /**
+     * @return the parent of node v (-1 for the root)
+     */
+    public int getParent(int v){return parent[v];}
+    public double getBranchLength(int v){return branchLength[v];}
+    public double getDepth(int v){return depth[v];}
+    public boolean isLeaf(int v){return childStart[v] == childStart[v + 1];}
+    /**
+     * @return the position in getChildren() of the first child of node v
+     */
+    public int getFirstChild(int v){return childStart[v];}
+    /**
+     * @return the position in getChildren() after the last child of node v
+     */
+    public int getEndChild(int v){return childStart[v + 1];}
+    /**
+     * @return the children of all nodes, node by node (see getFirstChild() and getEndChild());
+     * not to be modified
+     */
+    public int[] getChildren(){return children;}
+
+    /**
+     * @return the tree height (longest path from root to a leaf)
+     */
+    public double getTreeHeight(){return longestPathDown[0];}
+
+    /**
+     * @return the sum of the branch lengths of the subtree rooted at node v
+     */
+    public double getSubtreeVolume(int v){return subtreeVolume[v];}
+    public double getTreeVolume(){return subtreeVolume[0];}
+
+    /**
+     * @return the nodes in the order they are written to the output files; not to be modified
+     */
+    public int[] getOutputOrder(){return outputOrder;}
+
+    /**
+     * Look up a node by name (for the input only)
+     * @param name the node's name
+     * @return the node's id, or -1 if no node has this name
+     */
+    public synchronized int getNodeId(String name){
+	if (name2id == null)
+	    buildNameMap();
+	Integer id = name2id.get(name);
+	return (id == null) ? -1 : id;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * The compiled tree cached in binary form next to the Newick file it was read from
+ * (TREE_CACHE true), so that a tree used by many runs is parsed only once.
+ * The cache file is TREE_FILE + ".compiled": a header (magic number, format version, and the
+ * length and CRC32 checksum of the Newick file), then the tree as written by CompiledTree.writeTo().
+ * It is memory-mapped when loaded, and used only if the Newick file still has the same length and
+ * checksum; otherwise the Newick file is parsed and the cache rewritten.
+ */
+public class CompiledTreeFile{
+    private static final String SUFFIX = ".compiled";
+    private static final int MAGIC = 0x53545245; //"STRE"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    /**
+     * Read the tree from the cache if it is there and up to date, otherwise parse the Newick file
+     * (and write the cache)
+     * @param treeFile name of the Newick file (including path, if not in current directory)
+     * @return the tree
+     */
+    public static CompiledTree read(String treeFile) throws IOException{
+	File source = new File(treeFile);
+	if (!source.isFile())
+	    return NewickReader.read(treeFile); //which reports the error
+	long sourceLength = source.length();
+	long checksum = checksum(source);
+	File cache = new File(treeFile + SUFFIX);
+	if (cache.isFile()){
+	    try{
+		CompiledTree tree = load(cache, sourceLength, checksum);
+		if (tree != null){
+		    if (Parameters.debug())
+			System.out.println("tree loaded from " + cache);
+		    return tree;
+		}
+	    }catch(IOException | RuntimeException e){ //a damaged cache is simply rewritten
+		System.err.println("Warning: cannot read the tree cache " + cache + ": " + e);
+	    }
+	}
+	CompiledTree tree = NewickReader.read(treeFile);
+	try{
+	    write(tree, cache, sourceLength, checksum);
+	}catch(IOException e){
+	    System.err.println("Warning: cannot write the tree cache " + cache + ": " + e.getMessage());
+	}
+	return tree;
+    }
+
+    /**
+     * Load the tree from the cache
+     * @return the tree, or null if the cache is for another version of the Newick file
+     */
+    private static CompiledTree load(File cache, long sourceLength, long checksum) throws IOException{
+	RandomAccessFile file = new RandomAccessFile(cache, "r");
+	try{
+	    FileChannel channel = file.getChannel();
+	    if (channel.size() < HEADER_SIZE)
+		return null;
+	    MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	    if (in.getInt() != MAGIC || in.getInt() != VERSION
+		|| in.getLong() != sourceLength || in.getLong() != checksum)
+		return null;
+	    return CompiledTree.readFrom(in);
+	}finally{
+	    file.close();
+	}
+    }
+
+    /**
+     * Write the cache, through a temporary file, so that a run reading the cache never sees it half-written
+     */
+    private static void write(CompiledTree tree, File cache, long sourceLength, long checksum) throws IOException{
+	File dir = cache.getAbsoluteFile().getParentFile();
+	File tmp = File.createTempFile(cache.getName(), ".tmp", dir);
+	try{
+	    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+	    try{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(sourceLength);
+		out.writeLong(checksum);
+		tree.writeTo(out);
+	    }finally{
+		out.close();
+	    }
+	    if (!tmp.renameTo(cache)){
+		cache.delete();
+		if (!tmp.renameTo(cache))
+		    throw new IOException("cannot rename " + tmp + " to " + cache);
+	    }
+	}finally{
+	    tmp.delete(); //if it is still there
+	}
+    }
+
+    /**
+     * @return the CRC32 checksum of the file contents
+     */
+    private static long checksum(File f) throws IOException{
+	CRC32 crc = new CRC32();
+	byte[] buffer = new byte[1 << 16];
+	InputStream in = new FileInputStream(f);
+	try{
+	    int n;
+	    while ((n = in.read(buffer)) > 0)
+		crc.update(buffer, 0, n);
+	}finally{
+	    in.close();
+	}
+	return crc.getValue();
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Interface for the structures that keep track of the rates of all possible events
+ * (substitutions at each sequence position and the stochastic landscape change)
+ * and draw the next event proportionally to these rates.
+ * Event indices 0..seqLength-1 are substitutions at the corresponding positions,
+ * event seqLength is the landscape change.
+ */
+public interface EventSampler{
+    /**
+     * Recompute all the rates from scratch (e.g., after the landscape has changed)
+     * @param seq the sequence of allele indices
+     * @param landscape the landscape governing the substitution rates
+     * @param landscapeChangeRate the rate of stochastic landscape change (0 if deterministic)
+     */
+    void computeRates(PackedSeq seq, Landscape landscape, double landscapeChangeRate);
+
+    /**
+     * Update the rates after a substitution
+     * @param position the position that was changed
+     * @param oldChar the allele that was in the position before the substitution
+     * @param newChar the allele that is in the position now
+     * @param landscape the landscape governing the substitution rates
+     */
+    void registerSubstitution(int position, byte oldChar, byte newChar, Landscape landscape);
+
+    /**
+     * @return the total rate of any event
+     */
+    double getSumRates();
+
+    /**
+     * Draw the next event with probability proportional to its rate
+     * @param random the RandomNumberGenerator object providing the RNG to be used
+     * @return the index of the event (seqLength for the landscape change)
+     */
+    int sample(RandomNumberGenerator random);
+
+    /**
+     * @return an independent copy of this sampler
+     */
+    EventSampler copy();
+}
@@ -0,0 +1,21 @@
+/**
+ * Enum class for the EVENT_SAMPLER options
+ */
+
+public enum EventSampling{
+    SUM_TREE, ALLELE_CLASS;
+
+    /**
+     * Return the enum corresponding to the given string (case-insensitive)
+     * @param value the string to convert to enum
+     * @throws UnrecognizedValueException if the string is not recognized
+     */
+    static EventSampling stringToEnum(String value){
+	try{
+	    return valueOf(value.toUpperCase());
+	}
+	catch(IllegalArgumentException e){
+	    throw new UnrecognizedValueException("EVENT_SAMPLER", value);
+	}
+    }
+}
@@ -22,43 +22,44 @@ public class EvolutionaryProcess implements Runnable{
 	    }
 	    
 	}
-	private Map<String, ChangeStruct> branch2changes; //map branches to ChangeStructs
+	private ChangeStruct[] branch2changes; //map branches (node ids) to ChangeStructs
 	/**
 	 * Create new ChangeTracker for this instance; only does something if the
 	 * user chooses to save and print fitness change info
+	 * @param numNodes the number of tree nodes
 	 */
-	public ChangeTracker(){
+	public ChangeTracker(int numNodes){
 	    if (Parameters.printFitnessInfo())       
-		branch2changes = new HashMap<String, ChangeStruct> ();
+		branch2changes = new ChangeStruct[numNodes];
 	}
 	
 	/**
 	 * Register a landscape change 
-	 * @param branchName name of the node identifying the branch where the change occurs (its end)
+	 * @param node the node identifying the branch where the change occurs (its end)
 	 * @param time the time on that branch when the change occurs
-	 * @param fitness the new fitness vector
+	 * @param ls the changed landscape (its fitness vector is copied only if it is printed)
 	 */
-	void registerChange(String branchName, double time, double[] fitness){
+	void registerChange(int node, double time, Landscape ls){
 	    count++;
 	    if (!Parameters.printFitnessInfo())
 		return;
-	    ChangeStruct str =  branch2changes.get(branchName);
+	    ChangeStruct str =  branch2changes[node];
 	    if (str == null){
 		str = new ChangeStruct();
-		branch2changes.put(branchName, str);
+		branch2changes[node] = str;
 	    }
 	    str.changetimes.add(time);
-	    str.fitnesses.add(fitness);
+	    str.fitnesses.add(ls.getCopyOfFitness());
 	}
 	/**
 	 * Get the landscape change times on the given branch
-	 * @param nodeName name of the node that is the endpoing of the branch
+	 * @param node the node that is the endpoing of the branch
 	 * @return the changetimes encoded as string (inside []) or null if this info is not requested
 	 */
-	public String getChangeTimes(String nodeName){
+	public String getChangeTimes(int node){
 	    if (!Parameters.printFitnessInfo()) 
 		return null;
-	    ChangeStruct cs  = branch2changes.get(nodeName);
+	    ChangeStruct cs  = branch2changes[node];
 	    if (cs == null)
 		return "[]";	
 	    ArrayList<Double> arr = cs.changetimes;
@@ -66,14 +67,14 @@ public class EvolutionaryProcess implements Runnable{
 	}
 	/**
 	 * Get the fitness vectors that were assigned  on the given branch
-	 * @param nodeName name of the node that is the endpoing of the branch
+	 * @param node the node that is the endpoing of the branch
 	 * @return the changetimes separated by : inside {} or null if this info is not requested
 	 * Returns null if this info is not requested
 	 */
-	public String  getFitnesses(String nodeName){
+	public String  getFitnesses(int node){
 	    if (!Parameters.printFitnessInfo()) 
 		return null;
-	    ChangeStruct cs  = branch2changes.get(nodeName);
+	    ChangeStruct cs  = branch2changes[node];
 	    if (cs == null)
 		return "{}";
 	else{
@@ -93,17 +94,17 @@ public class EvolutionaryProcess implements Runnable{
     /**
      * The class for caching sequence aspect of the evolutionary simulation
      * It kepes track of:
-     *  - the current sequence (encoded as array of allele indices of length seqLength
-     *  - a vector of length seqLength containing the current substitution rate for each
-     *  alle in the sequence AND as its last entry the rate of landscape change.
-     *  This vector is normalized to sum to 1 in order to be a probability distribution
-     *  from which the choice of event is drawn
+     *  - the current sequence (allele indices, packed; of length seqLength
+     *  - an EventSampler holding the current substitution rate for each
+     *  allele in the sequence AND the rate of landscape change.
+     *  The choice of event is drawn from it proportionally to the rates
+     *  (the uniformization engine does not need the rates, so then there is no EventSampler)
      *   - sumRates, the total rate of any change occurring
      */
     class Seq{
-	byte[] seq; //the sequence encoded as array of allele indices
+	PackedSeq seq; //the sequence of allele indices
 	int seqLength;   // sequence length, cached for simplicity
-	double[] changeRateVect; //the vector of allele substitution rate and landscape change rate
+	EventSampler changeRates; //the allele substitution rates and the landscape change rate
 	double sumRates; // the total substitution rate
 
 	/**
@@ -112,8 +113,8 @@ public class EvolutionaryProcess implements Runnable{
 	 */
 	public Seq (int seqLength){
 	    this.seqLength = seqLength;
-	    seq = new byte[seqLength];
-	    changeRateVect = new double[seqLength+1];
+	    seq = new PackedSeq(seqLength);
+	    changeRates = newEventSampler(seqLength);
 	}
 	
 	/**
@@ -130,13 +131,13 @@ public class EvolutionaryProcess implements Runnable{
 	/**
 	 * Create a new Seq structure for sequence of length seqLength and initialize it
 	 * according to the stationary distribution of the given landscape
-	 * @param userSuppliedSeq is the byte array representing the root sequence (as indices into ALPHABET)
+	 * @param userSuppliedSeq the root sequence (as indices into ALPHABET)
 	 * @param landsacpe current fitness landscape (for computing the change rate vector)
 	 */
-	public Seq (byte[] userSuppliedSeq, Landscape landscape){
-	    seqLength = userSuppliedSeq.length;
+	public Seq (PackedSeq userSuppliedSeq, Landscape landscape){
+	    seqLength = userSuppliedSeq.length();
 	    this.seq = userSuppliedSeq;
-	    changeRateVect = new double[seqLength+1];
+	    changeRates = newEventSampler(seqLength);
 	    computeChangeRateVect(landscape);			
 	}
 
@@ -145,79 +146,61 @@ public class EvolutionaryProcess implements Runnable{
 	 * @param orig Seq structure to clone
 	 */
 	Seq(Seq orig){
-	    seq = java.util.Arrays.copyOf(orig.seq, orig.seq.length);
-	    changeRateVect = java.util.Arrays.copyOf(orig.changeRateVect, orig.changeRateVect.length);
+	    seq = new PackedSeq(orig.seq);
+	    if (orig.changeRates != null)
+		changeRates = orig.changeRates.copy();
 	    sumRates = orig.sumRates;
 	    seqLength = orig.seqLength;
 	}
 	
 	/**
-	 * Fill in the vector of substitution rates for each allele in the sequence
+	 * Create the event sampler chosen in the config
+	 * @param seqLength the sequence length
+	 * @return the new (empty) EventSampler, or null for the uniformization engine
+	 */
+	private EventSampler newEventSampler(int seqLength){
+	    if (Parameters.getSimulationEngine() == SimulationEngine.UNIFORMIZATION)
+		return null;
+	    else if (Parameters.getEventSampling() == EventSampling.SUM_TREE)
+		return new SumTreeEventSampler(seqLength);
+	    else
+		return new AlleleClassEventSampler(seqLength, Parameters.getAlphabetSize());
+	}
+
+	/**
+	 * Fill in the substitution rates for each allele in the sequence
 	 * Fill in the landsacpe change rate (0 if deterministic)
-	 * Noramlize the vector to sum to 1
 	 * @param landscape the landscape governing the substitution rates
 	 */
 	void computeChangeRateVect(Landscape landscape){
-
-	    sumRates = 0;
-	    for (int i = 0; i < seq.length; i++){
-		int curChar = seq[i];
-		changeRateVect[i] = -landscape.Qat(curChar,curChar);
-		sumRates += -landscape.Qat(curChar,curChar);
-	    }
-	    if (model.getLandscapeChangeTiming() == LandscapeChangeTiming.STOCHASTIC){
-		changeRateVect[seq.length] = model.getLandscapeChangeRate();	 
-		if (Parameters.scaleLandscapeChangeToSubstitutionRate()) 
-		    changeRateVect[seq.length] *= landscape.getDiagQtimesPi();
-	    }else
-		changeRateVect[seq.length] = 0; //for deterministic change
-
-	    sumRates += changeRateVect[seq.length];
-
-	    //normalize the changeRateVect for it to be a probability distribution on change events
-	    for (int i = 0; i < changeRateVect.length; i++)
-		changeRateVect[i]/=sumRates;
+	    if (changeRates == null)
+		return;
+	    changeRates.computeRates(seq, landscape, getLandscapeChangeRate(landscape));
+	    sumRates = changeRates.getSumRates();
 	}
 	
 	/**
-	 * After a substitution, recompute the changeRateVect (minimizing the recomputation)
+	 * After a substitution, update the rate of the changed position only
 	 * @param landscape the fitness landscape governing the rates
-	 * @parm positionChanged the position in the sequence/changeRateVect that was changed
+	 * @parm positionChanged the position in the sequence that was changed
 	 * @param oldChar the allele that was in the position before the substitution
 	 */
-	private void recomputeChangeRateVect(Landscape landscape, int positionChanged, int oldChar){
-	    /* do it more simply, just straightforward, with no tricks */
-	    computeChangeRateVect(landscape);
-	    /*
-	    //compute total rate of change for all positions:
-	    double oldSum = sumRates; //the rate of change before the substitution
-
-	    //first, subtract from total change rate the contribution of the old allele's rate
-	    sumRates -= -landscape.Qat(oldChar, oldChar); 
-	    int curChar = seq[positionChanged]; //the new allele
-	    //divide the new allele's scaled rate  by oldSum
-	    //so that later we can multiply by oldSum/[new] sumRates
-	    changeRateVect[positionChanged] = -landscape.Qat(curChar,curChar)/oldSum; 
-
-	    //now add the contribution of the new allele's rate to the total change rate
-	    sumRates += -landscape.Qat(curChar,curChar); 
-
-	    //renormalize the changeRateVect
-	    for (int i = 0; i < changeRateVect.length; i++)
-		changeRateVect[i]*=(oldSum/sumRates);
-
-
-	    */
-	    
+	private void recomputeChangeRateVect(Landscape landscape, int positionChanged, byte oldChar){
+	    changeRates.registerSubstitution(positionChanged, oldChar, seq.get(positionChanged), landscape);
+	    sumRates = changeRates.getSumRates();
 	}
 	/**
 	 * Generate the sequence according to the landscape's stationary distribution
 	 * @param landscape the landsacpe defining the allele distribution
 	 */
 	private void  generateSeq(Landscape landscape){
+	    int rootId = tree.getRoot();
 	    for (int i = 0; i < seqLength; i++){
-		int index = random.sampleDiscrete(landscape.getPi());
-		seq[i] = (byte)index;
+		//every block of sites has its own stream (with the counter-based RNG),
+		//so a block's alleles don't depend on how the other blocks are drawn
+		if (i % ROOT_SITE_BLOCK == 0)
+		    random.setStream(rootId, 1 + i / ROOT_SITE_BLOCK);
+		seq.set(i, landscape.sampleFromPi());
 	    }
 	}
 	/**
@@ -226,19 +209,22 @@ public class EvolutionaryProcess implements Runnable{
 	 * @param landscape the current landscape
 	 */
 	private  void updateSeq( int whichEvent, Landscape landscape){
-	    byte oldChar = seq[whichEvent];
+	    byte oldChar = seq.get(whichEvent);
 
-	    seq[whichEvent] = landscape.pickNewCharacter( seq[whichEvent]);
+	    seq.set(whichEvent, landscape.pickNewCharacter(oldChar));
 	    recomputeChangeRateVect(landscape, whichEvent, oldChar);
 	}
     }
     //members of the EvolutionaryProcess class    
-    private BasicTree tree; //the phylogenetic tree 
-    Map<BasicNode, byte[]> node2seq; //mapping from tree nodes to sequences at those nodes
+    private CompiledTree tree; //the phylogenetic tree 
+    PackedSeq[] node2seq; //the sequences at the tree nodes, by node id (null for the nodes not retained)
+    OutputArena outputArena; //where the output sequences are written as they are computed; null if they are kept in node2seq
     ChangeTracker changeTracker; //keep track of the changes
     private int seqLength; 
     int id; //process id
     private RandomNumberGenerator random; //this evolutionary process's separate RNG
+    private RandomNumberGenerator statsRandom; //for the COLLECT_STATS diagnostics only, so that they don't change the simulation
+    private static final int ROOT_SITE_BLOCK = 4096; //the number of root sites drawn from one RNG stream
     private Model model;
     
     /**
@@ -247,34 +233,50 @@ public class EvolutionaryProcess implements Runnable{
      * @param seqLength the sequence length
      * @param id the process id
      */
-    public EvolutionaryProcess (BasicTree tree,  Model model, int id){
+    public EvolutionaryProcess (CompiledTree tree,  Model model, int id){
 	this.id = id;
 	this.tree = tree;
-	node2seq = new HashMap<BasicNode, byte[]>(tree.getNumNodes());
+	node2seq = new PackedSeq[tree.getNumNodes()];
 	this.model = model;
 	this.seqLength = model.getSequenceLength();
-	
+	//create the rng here rather than in run(): the processes are created in the order of their ids,
+	//so each one gets the same stream regardless of the order in which the threads run them
+	random = new RandomNumberGenerator(id);
+	if (Parameters.collectStats())
+	    statsRandom = RandomNumberGenerator.newCounterBased(id);
     }
     /**
-     * Sample the next event based on the [substitution rates, landscape change rate] vector
-     * @param changeRateVect the vector from which to sample the change
+     * @param landscape the current landscape
+     * @return the rate of stochastic landscape change (0 if deterministic)
      */
-    private  int sampleNextEvent(double [] changeRateVect){
-	return random.sampleDiscrete(changeRateVect);
+    private double getLandscapeChangeRate(Landscape landscape){
+	if (model.getLandscapeChangeTiming() != LandscapeChangeTiming.STOCHASTIC)
+	    return 0; //for deterministic change
+	double rate = model.getLandscapeChangeRate();	 
+	if (Parameters.scaleLandscapeChangeToSubstitutionRate()) 
+	    rate *= landscape.getDiagQtimesPi();
+	return rate;
+    }
+
+    /**
+     * Sample the next event based on the [substitution rates, landscape change rate]
+     * @param changeRates the rates from which to sample the change
+     */
+    private  int sampleNextEvent(EventSampler changeRates){
+	return changeRates.sample(random);
     }
     
-    private  void printTree(BasicNode root){
-	System.out.println("this is:" + root + " at depth " + root.getDepth() );
-	byte[] seq = node2seq.get(root);
+    private  void printTree(int root){
+	System.out.println("this is:" + tree.getName(root) + " at depth " + tree.getDepth(root) );
 	
 	System.out.println("its children are: ");
-	List<BasicNode > children = root.getChildren();
-	for (BasicNode child : children){
-	    System.out.println(child + " " + child.getLength());
+	int[] children = tree.getChildren();
+	for (int k = tree.getFirstChild(root); k < tree.getEndChild(root); k++){
+	    System.out.println(tree.getName(children[k]) + " " + tree.getBranchLength(children[k]));
 	}
 	System.out.println();
-	for (BasicNode child : children){
-	    printTree(child);
+	for (int k = tree.getFirstChild(root); k < tree.getEndChild(root); k++){
+	    printTree(children[k]);
 	}
     }
     /**
@@ -282,46 +284,52 @@ public class EvolutionaryProcess implements Runnable{
      * @param ls the current landsacpe
      * @param seqStr the sequence structure
      * @param changeTracker structure for registering the landscape change
-     * @param nodeName name of the tree node on the branch to which the change occurs
+     * @param node the tree node on the branch to which the change occurs
      * @param branchLeft the branch time until that node
      * @param firstChangeInBranch is this the first time on this branch that the landscape changes?
      * @param fitness new fitness vector specified by user for this branch; null if not specified      
      * @return the new landscape (may actually be the old Java object ls)
      */
-    private Landscape changeLandscape(Landscape ls, Seq seqStr, ChangeTracker changeTracker, String nodeName, double branchLeft, boolean firstChangeInBranch, double[] newFitness){
+    private Landscape changeLandscape(Landscape ls, Seq seqStr, ChangeTracker changeTracker, int node, double branchLeft, boolean firstChangeInBranch, double[] newFitness){
 	
 	//if this is the first time we change landscape on this branch,
 	//we need to create a new landscape, so that sister branches won't be affected.
-	ls = Landscape.getNewLandscape(ls, firstChangeInBranch, seqStr.seq[0], newFitness);
+	ls = Landscape.getNewLandscape(ls, firstChangeInBranch, seqStr.seq.get(0), newFitness);
 	//compute new changeRateVect based on the new landscape
 	seqStr.computeChangeRateVect(ls);
-	changeTracker.registerChange(nodeName, branchLeft, ls.getCopyOfFitness());
+	changeTracker.registerChange(node, branchLeft, ls);
 	if (Parameters.debug())
 	    ls.printParams();
 	
 	return ls;
     }
 
-    /*** The simulation happens in the BFS order on the tree. Here's the infrastructure for it ***/
+    /*** The simulation happens in the BFS (or DFS) order on the tree. Here's the infrastructure for it ***/
     
     /**
-     * The (tree)node-associated data that is used in the BFS queue
+     * The (tree)node-associated data that is used in the BFS queue (and the DFS stack)
      */
     class BFSNode{	
-	BasicNode node; //the relevant tree nodey
+	int node; //the relevant tree node
 	double parentTimeTillDeterministicLandscapeChange; //the time till deterministic landscape change
                                                            //remaining from the parent
-	Seq origSeqStr; //the inherited sequence structure
+	Seq origSeqStr; //the inherited sequence structure (without the rates in DFS)
 	Landscape inheritedLandscape; //the inherited landscape
-	BFSNode(BasicNode node, Landscape inheritedLandscape, double parentTimeTillDeterministicLandscapeChange, Seq origSeqStr){
+	int nextChild; //the position in tree.getChildren() of the next child to evolve
+	BFSNode(int node, Landscape inheritedLandscape, double parentTimeTillDeterministicLandscapeChange, Seq origSeqStr){
 	    this.node = node;
+	    this.nextChild = tree.getFirstChild(node);
 	    this.inheritedLandscape=inheritedLandscape;
 	    this.parentTimeTillDeterministicLandscapeChange = parentTimeTillDeterministicLandscapeChange;
 	    this.origSeqStr = origSeqStr;
+	    //the shared landscape is kept as long as the node is pending
+	    if (landscapeChain != null)
+		landscapeChain.retain(inheritedLandscape);
 	}
     }
 
-    LinkedList<BFSNode> queue = new LinkedList<BFSNode>(); //the BFS queue
+    ArrayDeque<BFSNode> queue = new ArrayDeque<BFSNode>(); //the BFS queue
+    SharedLandscapeChain landscapeChain; //the shared landscapes; null if landscapes evolve independently
 
     /**
      * Do the evolution simulation as BFS on the tree
@@ -330,104 +338,291 @@ public class EvolutionaryProcess implements Runnable{
 	while (!queue.isEmpty()) {
             BFSNode bfsNode = queue.remove();
 	    try{ //just to catch and trace our mess-up runtime exceptions
-		List<BasicNode > children = bfsNode.node.getChildren(); //get the tree node's children
+		int[] children = tree.getChildren(); //the tree node's children are a range of it
 		//go down each branch
-		for (BasicNode child : children){
-		    boolean landscapeChangedThisBranch = false; //has landscape changed this branch?
-		    
-		    Seq seqStr = new Seq(bfsNode.origSeqStr);	 //create a copy of seq
-		    Landscape localLS = bfsNode.inheritedLandscape;
-		    double branchLeft = (double)child.getLength(); //the length of the branch remaining
-		    int positionChanged = -1;
-		    
-		    //time until next deterministic landscape change left over from the parent node
-		    double timeTillDeterministicLandscapeChange = bfsNode.parentTimeTillDeterministicLandscapeChange;
-		    //if we want the change to take place at prespecified positions,
-		    //override this value (shd be 0) just for this branch
-		    double fitness[] = null;//new fitness to change to, if user-specified
+		while (bfsNode.nextChild < tree.getEndChild(bfsNode.node)){
+		    int child = children[bfsNode.nextChild++];
+		    BFSNode childBFSNode = evolveBranch(bfsNode, child);
+
+		    //by now we've computed the sequence for the child node, so save it
+		    storeSequence(child, childBFSNode.origSeqStr.seq);
+
+		    //and queue the child for BFS
+		    queue.add(childBFSNode);
+		}
+	    }catch(Exception e){
+		e.printStackTrace();
+	    }finally{
+		//the children have taken over from here, so the node's landscape can go,
+		//and so can its sequence unless it is kept for the output
+		if (landscapeChain != null)
+		    landscapeChain.release(bfsNode.inheritedLandscape);
+		if (!keepsSequence(bfsNode.node))
+		    node2seq[bfsNode.node] = null;
+	    }
+	}
+    }
+
+    /**
+     * Do the evolution simulation as DFS on the tree.  The stack holds the nodes on the path from
+     * the root to the current node, each with the position of its next child, so only O(depth)
+     * nodes are live; their sequences are the ones in node2seq, and their rates are not kept,
+     * but recomputed when a branch is entered.
+     * A failing branch fails the whole instance (the exception goes on out of run())
+     * @param root the BFS data of the root
+     */
+    private void evolveDFS(BFSNode root){
+	ArrayDeque<BFSNode> stack = new ArrayDeque<BFSNode>();
+	stack.push(root);
+	int[] children = tree.getChildren();
+	while (!stack.isEmpty()){
+	    BFSNode top = stack.peek();
+	    if (top.nextChild == tree.getEndChild(top.node)){
+		//all the children are done, so the node's landscape can go,
+		//and so can its sequence unless it is kept for the output
+		stack.pop();
+		if (landscapeChain != null)
+		    landscapeChain.release(top.inheritedLandscape);
+		if (!keepsSequence(top.node))
+		    node2seq[top.node] = null;
+		continue;
+	    }
+	    int child = children[top.nextChild++];
+	    BFSNode childBFSNode = evolveBranch(top, child);
+	    storeSequence(child, childBFSNode.origSeqStr.seq);
+	    childBFSNode.origSeqStr.changeRates = null; //recomputed on the child's branches
+	    stack.push(childBFSNode);
+	}
+    }
+
+    /**
+     * Save the sequence of a node once it is computed: in node2seq, for the node's children, and,
+     * if there is an output arena, in its place in the output file
+     * @param node the node
+     * @param seq the node's sequence
+     */
+    private void storeSequence(int node, PackedSeq seq){
+	node2seq[node] = seq;
+	if (outputArena != null)
+	    outputArena.write(node, id, seq);
+    }
+
+    /**
+     * @param node a tree node
+     * @return true if the node's sequence is kept in node2seq until the output
+     * (otherwise it goes once the node's children are done)
+     */
+    private boolean keepsSequence(int node){
+	return outputArena == null && Parameters.isRetained(node);
+    }
+
+    /**
+     * Copy the sequence structure at the beginning of a branch.  The sequence copy shares the
+     * parent's sequence chunks (see PackedSeq), so this is cheap but for the rates; in BFS the last
+     * child takes over the parent's structure, rates and all, as the parent is done with it
+     * (its sequence stays in node2seq, since the child gets a copy of it)
+     * @param parent the BFS data of the node at the beginning of the branch
+     * @return the copy, with the rates (copied in BFS, recomputed in DFS)
+     */
+    private Seq inheritSeq(BFSNode parent){
+	Seq orig = parent.origSeqStr;
+	if (Parameters.getTraversal() == Traversal.DFS)
+	    return new Seq(new PackedSeq(orig.seq), parent.inheritedLandscape);
+	if (parent.nextChild == tree.getEndChild(parent.node)){
+	    parent.origSeqStr = null;
+	    orig.seq = new PackedSeq(orig.seq);
+	    return orig;
+	}
+	return new Seq(orig);
+    }
+
+    /**
+     * Simulate the evolution along the branch leading to child, with the engine chosen in the config
+     * @param parent the BFS data of the node at the beginning of the branch
+     * @param child the node at the end of the branch
+     * @return the BFS data of the child, with its sequence and landscape
+     */
+    private BFSNode evolveBranch(BFSNode parent, int child){
+	//with the counter-based RNG, each branch draws from its own stream
+	random.setStream(child, 0);
+	if (Parameters.getSimulationEngine() == SimulationEngine.UNIFORMIZATION)
+	    return evolveBranchUniformized(parent, child);
+	else
+	    return evolveBranchDirect(parent, child);
+    }
+
+    /**
+     * Get the time until the next deterministic landscape change at the beginning of the branch
+     * @param parent the BFS data of the node at the beginning of the branch
+     * @param child the node at the end of the branch
+     * @return the time left over from the parent, or, if the change takes place at prespecified
+     * positions, the time until the position on this branch
+     */
+    private double getTimeTillDeterministicLandscapeChange(BFSNode parent, int child){
+	if (model.changeAtSpecifiedBranchAndTime())
+	    return tree.getBranchLength(child) - model.getChangeTimeThisBranch(child);
+	return parent.parentTimeTillDeterministicLandscapeChange;
+    }
+
+    /**
+     * Simulate the evolution along one branch by drawing every event from the
+     * current rates of all positions (and of the landscape change)
+     * @param parent the BFS data of the node at the beginning of the branch
+     * @param child the node at the end of the branch
+     * @return the BFS data of the child, with its sequence and landscape
+     */
+    private BFSNode evolveBranchDirect(BFSNode parent, int child){
+	boolean landscapeChangedThisBranch = false; //has landscape changed this branch?
 		    
-		    if (model.changeAtSpecifiedBranchAndTime()){
-			
-		       	timeTillDeterministicLandscapeChange = (double)child.getLength() - model.getChangeTimeThisBranch(child);
-			fitness = model.getNewFitnessThisBranch(child);
-		    }
+	Seq seqStr = inheritSeq(parent);	 //create a copy of seq
+	Landscape localLS = parent.inheritedLandscape;
+	double branchLeft = tree.getBranchLength(child); //the length of the branch remaining
 		    
+	//time until next deterministic landscape change left over from the parent node
+	//(or until the prespecified position on this branch)
+	double timeTillDeterministicLandscapeChange = getTimeTillDeterministicLandscapeChange(parent, child);
+	//new fitness to change to, if user-specified
+	double fitness[] = model.changeAtSpecifiedBranchAndTime() ? model.getNewFitnessThisBranch(child) : null;
 		    
-		    while (branchLeft > 0){//this condition will always be true, i think
-			//get the time till next stochastic event
-			//(substitution and/or stochastic landscape change)
-			double timeTillNextStochasticEvent = random.sampleExponential(seqStr.sumRates);
-
-			if (timeTillDeterministicLandscapeChange < branchLeft  &&
-			    timeTillDeterministicLandscapeChange < timeTillNextStochasticEvent){
-			    // if the next thing that's going to happen is deterministic landscape change...
+	while (branchLeft > 0){//this condition will always be true, i think
+	    //get the time till next stochastic event
+	    //(substitution and/or stochastic landscape change)
+	    double timeTillNextStochasticEvent = random.sampleExponential(seqStr.sumRates);
+
+	    if (timeTillDeterministicLandscapeChange < branchLeft  &&
+		timeTillDeterministicLandscapeChange < timeTillNextStochasticEvent){
+		// if the next thing that's going to happen is deterministic landscape change...
 			    
-			    branchLeft -= timeTillDeterministicLandscapeChange;
+		branchLeft -= timeTillDeterministicLandscapeChange;
 			    
-			    if (Parameters.debug()){
-				System.out.println(id + ": change landscape deterministically at time "+ branchLeft +" before " + child + " whose depth is " + child.getDepth());
-			    }
+		if (Parameters.debug()){
+		    System.out.println(id + ": change landscape deterministically at time "+ branchLeft +" before " + tree.getName(child) + " whose depth is " + tree.getDepth(child));
+		}
 
-			    //if the landscape hasn't changed before on this branch,
-			    //this is the first landscape change on this branch,
-			    //so we'll need a new landscape object
-			    localLS = changeLandscape(localLS, seqStr, changeTracker, child.toString(), branchLeft, !landscapeChangedThisBranch, fitness);
-			    landscapeChangedThisBranch = true;
+		//if the landscape hasn't changed before on this branch,
+		//this is the first landscape change on this branch,
+		//so we'll need a new landscape object
+		localLS = changeLandscape(localLS, seqStr, changeTracker, child, branchLeft, !landscapeChangedThisBranch, fitness);
+		landscapeChangedThisBranch = true;
 
-			    timeTillDeterministicLandscapeChange = model.getLandscapeChangeInterval();
+		timeTillDeterministicLandscapeChange = model.getLandscapeChangeInterval();
 
-			}else if (timeTillNextStochasticEvent < branchLeft  ){
-			   //now consider the case that the next event is stochastic
-			    //(substitution or stochastic landscape change)
+	    }else if (timeTillNextStochasticEvent < branchLeft  ){
+		//now consider the case that the next event is stochastic
+		//(substitution or stochastic landscape change)
 			    
-			    branchLeft-=timeTillNextStochasticEvent;
+		branchLeft-=timeTillNextStochasticEvent;
 
-			    //what _is_ the next event?
-			    //changeRateVect is of length seqLength+1, with the last element
-			    //being the relative probability of landascpe change
-			    int whichEvent =  sampleNextEvent(seqStr.changeRateVect);
+		//what _is_ the next event?
+		//changeRates has seqLength+1 events, with the last one
+		//being the landascpe change
+		int whichEvent =  sampleNextEvent(seqStr.changeRates);
 
-			    if (whichEvent < seqStr.seqLength){//the next event changes the sequence	          
-				positionChanged = whichEvent;
-				if (Parameters.collectStats())
-				    System.out.println("### " + child + "\t" + branchLeft);
+		if (whichEvent < seqStr.seqLength){//the next event changes the sequence	          
+		    if (Parameters.collectStats())
+			System.out.println("### " + tree.getName(child) + "\t" + branchLeft);
 				
-				seqStr.updateSeq( whichEvent, localLS);
-				if (Parameters.collectStats())
-				    SubstitutionAnalyzer.registerSubstitution(child.toString(), whichEvent);
+		    seqStr.updateSeq( whichEvent, localLS);
+		    if (Parameters.collectStats())
+			SubstitutionAnalyzer.registerSubstitution(child, whichEvent);
 				
-			    }else{//the next event is probabilistic landscape change 
-				if (Parameters.debug()){
-				    System.out.println(id + ": change landscape probabilistically at time "+ branchLeft +" before " + child.toString());
-				    System.out.println("seqStr: " + seqStr);
-				}
-				//if landscape hasn't changed yet on this branch,
-				//then this is the first change, so need new landscape
-				localLS = changeLandscape(localLS, seqStr, changeTracker, child.toString(),
-							  branchLeft, !landscapeChangedThisBranch, fitness);
-				landscapeChangedThisBranch = true;
-			    }
-			    //subtract the elapsed time from time till next landscape change
-			    timeTillDeterministicLandscapeChange -=timeTillNextStochasticEvent;
-			    
-			}else{
-			    //the branch will run out before anything is scheduled to happen
-			    //subtract the remainder of the branch length from the remaining
-			    //determininstic interval
-			    timeTillDeterministicLandscapeChange-=branchLeft;
-			    break;
-			}
+		}else{//the next event is probabilistic landscape change 
+		    if (Parameters.debug()){
+			System.out.println(id + ": change landscape probabilistically at time "+ branchLeft +" before " + tree.getName(child));
+			System.out.println("seqStr: " + seqStr);
 		    }
-		    //by now we've computed the sequence for the child node, so save it
-		    node2seq.put(child, seqStr.seq);
+		    //if landscape hasn't changed yet on this branch,
+		    //then this is the first change, so need new landscape
+		    localLS = changeLandscape(localLS, seqStr, changeTracker, child,
+					      branchLeft, !landscapeChangedThisBranch, fitness);
+		    landscapeChangedThisBranch = true;
+		}
+		//subtract the elapsed time from time till next landscape change
+		timeTillDeterministicLandscapeChange -=timeTillNextStochasticEvent;
+			    
+	    }else{
+		//the branch will run out before anything is scheduled to happen
+		//subtract the remainder of the branch length from the remaining
+		//determininstic interval
+		timeTillDeterministicLandscapeChange-=branchLeft;
+		break;
+	    }
+	}
+	return new BFSNode(child, localLS, timeTillDeterministicLandscapeChange, seqStr);
+    }
 
-		    //and queue the child for BFS
-		    queue.add(new BFSNode(child, localLS, timeTillDeterministicLandscapeChange, seqStr));
+    /**
+     * Simulate the evolution along one branch by uniformization.
+     * Between landscape changes the landscape is fixed, so candidate events occur at every
+     * position at the constant dominating rate maxRate = max_i(-Q[i][i]).  We draw their number
+     * in the whole interval from Poisson(maxRate * seqLength * interval), and for each one pick a
+     * uniform position and accept or reject the substitution there according to the row
+     * of Q of its current allele.  No per-position rates are maintained.
+     * The interval ends at the end of the branch, at the next deterministic landscape change,
+     * or at the next stochastic landscape change (whose time is drawn separately, since
+     * its rate doesn't depend on the sequence).
+     * @param parent the BFS data of the node at the beginning of the branch
+     * @param child the node at the end of the branch
+     * @return the BFS data of the child, with its sequence and landscape
+     */
+    private BFSNode evolveBranchUniformized(BFSNode parent, int child){
+	boolean landscapeChangedThisBranch = false; //has landscape changed this branch?
+	Seq seqStr = inheritSeq(parent);	 //create a copy of seq
+	PackedSeq seq = seqStr.seq;
+	Landscape localLS = parent.inheritedLandscape;
+	double branchLeft = tree.getBranchLength(child); //the length of the branch remaining
+	double timeTillDeterministicLandscapeChange = getTimeTillDeterministicLandscapeChange(parent, child);
+	double fitness[] = model.changeAtSpecifiedBranchAndTime() ? model.getNewFitnessThisBranch(child) : null;
+	if (Parameters.collectStats()) //the branch's diagnostic stream (the node ids from Integer.MIN_VALUE up are left for these)
+	    statsRandom.setStream(Integer.MIN_VALUE + child, 0);
+
+	while (true){
+	    double landscapeChangeRate = getLandscapeChangeRate(localLS);
+	    double timeTillStochasticLandscapeChange = (landscapeChangeRate > 0) ?
+		random.sampleExponential(landscapeChangeRate) : Double.POSITIVE_INFINITY;
+	    //the interval during which the landscape stays the same
+	    double interval = Math.min(branchLeft, Math.min(timeTillDeterministicLandscapeChange,
+							    timeTillStochasticLandscapeChange));
+
+	    long numCandidates = (seqLength > 0) ?
+		random.samplePoisson(localLS.getMaxRate() * seqLength * interval) : 0;
+	    double candidateTime = 0; //the time of the current candidate since the start of the interval
+	    for (long k = 0; k < numCandidates; k++){
+		int position = random.nextInt(seqLength);
+		byte oldChar = seq.get(position);
+		byte newChar = localLS.pickUniformizedCharacter(oldChar);
+		if (Parameters.collectStats()){
+		    //the candidate times are sorted uniform order statistics on the interval
+		    candidateTime += (interval - candidateTime) * (1 - Math.pow(statsRandom.nextDouble(), 1.0 / (numCandidates - k)));
 		}
-	    }catch(Exception e){
-		e.printStackTrace();
+		if (newChar == oldChar) //rejected
+		    continue;
+		seq.set(position, newChar);
+		if (Parameters.collectStats()){
+		    System.out.println("### " + tree.getName(child) + "\t" + (branchLeft - candidateTime));
+		    SubstitutionAnalyzer.registerSubstitution(child, position);
+		}
+	    }
+
+	    if (interval == branchLeft){
+		//the branch ran out before the landscape changed
+		timeTillDeterministicLandscapeChange -= branchLeft;
+		break;
 	    }
+	    branchLeft -= interval;
+	    timeTillDeterministicLandscapeChange -= interval;
+	    if (interval == timeTillStochasticLandscapeChange){
+		if (Parameters.debug())
+		    System.out.println(id + ": change landscape probabilistically at time "+ branchLeft +" before " + tree.getName(child));
+	    }else{
+		if (Parameters.debug())
+		    System.out.println(id + ": change landscape deterministically at time "+ branchLeft +" before " + tree.getName(child) + " whose depth is " + tree.getDepth(child));
+		timeTillDeterministicLandscapeChange = model.getLandscapeChangeInterval();
+	    }
+	    localLS = changeLandscape(localLS, seqStr, changeTracker, child, branchLeft, !landscapeChangedThisBranch, fitness);
+	    landscapeChangedThisBranch = true;
 	}
+	return new BFSNode(child, localLS, timeTillDeterministicLandscapeChange, seqStr);
     }
 
     /**
@@ -435,19 +630,21 @@ public class EvolutionaryProcess implements Runnable{
      * This is where the EvolutionaryProcess execution begins
      */    
     public void run(){
-	//create the rng
-	random = new RandomNumberGenerator();
-
 	//here we need to create the first landscape
+	//(from the root's stream: with the counter-based RNG, block 0 of the root node
+	//is used for the initial landscape and blocks 1, 2, ... for the root sequence)
+	random.setStream(tree.getRoot(), 0);
 	Landscape landscape = new Landscape(random, model);
-        changeTracker = new ChangeTracker();
+	changeTracker = new ChangeTracker(tree.getNumNodes());
+	if (Parameters.sharedLandscape())
+	    landscapeChain = new SharedLandscapeChain(landscape);
 
 	
 	if (Parameters.debug()){
 	    landscape.printParams();
 	}
         //record the starting landscape as taking place at time 0 before the root
-        changeTracker.registerChange(tree.getRoot().toString(), 0, landscape.getCopyOfFitness());
+	changeTracker.registerChange(tree.getRoot(), 0, landscape);
 
 	//compute the deterministic landscape change time
  	double landscapeChangeTime = Double.POSITIVE_INFINITY;
@@ -465,20 +662,27 @@ public class EvolutionaryProcess implements Runnable{
 	if (rootSeqArr == null)
 	    rootSeqStr= new Seq(seqLength, landscape);
 	else
-	    rootSeqStr= new Seq(rootSeqArr, landscape);
+	    rootSeqStr= new Seq(PackedSeq.fromBytes(rootSeqArr), landscape);
 
-	node2seq.put(tree.getRoot(), rootSeqStr.seq);
+	storeSequence(tree.getRoot(), rootSeqStr.seq);
 
  	if (Parameters.collectStats())
 	    SubstitutionAnalyzer.init(tree, seqLength);
 	
 
  	//queue the root...
-	queue.add(new BFSNode(tree.getRoot(), landscape, landscapeChangeTime, rootSeqStr));
+	BFSNode root = new BFSNode(tree.getRoot(), landscape, landscapeChangeTime, rootSeqStr);
 	//...and start evolving!
-
-
-	evolveBFS();
+	if (Parameters.getTraversal() == Traversal.DFS){
+	    rootSeqStr.changeRates = null; //recomputed on the root's branches
+	    evolveDFS(root);
+	}else{
+	    queue.add(root);
+	    evolveBFS();
+	}
+	if (Parameters.debug() && landscapeChain != null)
+	    System.out.println(id + ": " + landscapeChain.getNumReleased() + " shared landscapes released during the run");
+	landscapeChain = null;
 	if (Parameters.collectStats())
 	    SubstitutionAnalyzer.substitutionStats();
 
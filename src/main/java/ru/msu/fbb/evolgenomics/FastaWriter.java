@@ -0,0 +1,196 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.*;
+
+/**
+ * Writer of one output file (FASTA-like: header lines and long sequence lines), writing the bytes
+ * the way PrintWriter did, but without going through chars: the alleles are encoded through a byte
+ * per allele table, word by word of the packed sequence (see PackedSeq.encode()), into large direct
+ * buffers, which a thread of its own writes to the file channel while the next ones are filled.
+ * (If some ALPHABET character does not take exactly one byte in the default charset, the sequences
+ * are decoded to chars and encoded as strings instead.)
+ */
+public class FastaWriter{
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int NUM_BUFFERS = 4;
+    private static final ByteBuffer END = ByteBuffer.allocate(0); //tells the writer thread to stop
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(NUM_BUFFERS);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(NUM_BUFFERS + 1);
+    private ByteBuffer current; //the buffer being filled
+    private final Thread writer;
+    private volatile IOException failure; //of the writer thread
+
+    private final Charset charset = Charset.defaultCharset(); //as PrintWriter encodes the text
+    private final byte[] lineSeparator = System.getProperty("line.separator").getBytes(charset);
+    private final char[] alphabet = Parameters.getAlphabet().toCharArray();
+    private final byte[] alleleBytes; //the byte of each allele index; null if some don't take one byte
+    private byte[] encoded = new byte[0]; //reused for every sequence
+    private char[] decoded = new char[0]; //only if alleleBytes is null
+
+    /**
+     * Create (or truncate) the file and start its writer thread
+     * @param fileName the file name
+     */
+    public FastaWriter(String fileName) throws IOException{
+	this.fileName = fileName;
+	channel = new FileOutputStream(fileName).getChannel();
+	for (int i = 0; i < NUM_BUFFERS; i++)
+	    free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+	current = free.remove();
+	alleleBytes = getAlleleBytes(alphabet, charset);
+	writer = new Thread(new Runnable(){
+		public void run(){writeAll();}
+	    }, "writer of " + fileName);
+	writer.start();
+    }
+
+    /**
+     * @param alphabet the character of each allele index
+     * @param charset the charset the output is encoded in
+     * @return the byte of each allele index, or null if some characters don't take exactly one byte
+     */
+    static byte[] getAlleleBytes(char[] alphabet, Charset charset){
+	byte[] alleleBytes = new byte[alphabet.length];
+	for (int a = 0; a < alphabet.length; a++){
+	    byte[] b = String.valueOf(alphabet[a]).getBytes(charset);
+	    if (b.length != 1)
+		return null;
+	    alleleBytes[a] = b[0];
+	}
+	return alleleBytes;
+    }
+
+    /**
+     * Write the buffers as they are filled; if writing fails, the rest are only handed back
+     */
+    private void writeAll(){
+	try{
+	    while (true){
+		ByteBuffer buffer = full.take();
+		if (buffer == END)
+		    return;
+		try{
+		    while (failure == null && buffer.hasRemaining())
+			channel.write(buffer);
+		}catch(IOException e){
+		    failure = e;
+		}
+		buffer.clear();
+		free.put(buffer);
+	    }
+	}catch(InterruptedException e){
+	    failure = new InterruptedIOException("writing " + fileName + " interrupted");
+	}
+    }
+
+    /**
+     * Hand the current buffer over to the writer thread and take a free one
+     */
+    private void flushBuffer() throws IOException{
+	if (failure != null)
+	    throw failure;
+	current.flip();
+	try{
+	    full.put(current);
+	    current = free.take();
+	}catch(InterruptedException e){
+	    throw new InterruptedIOException("writing " + fileName + " interrupted");
+	}
+    }
+
+    public void write(byte[] b, int offset, int length) throws IOException{
+	while (length > 0){
+	    int n = Math.min(length, current.remaining());
+	    current.put(b, offset, n);
+	    offset += n;
+	    length -= n;
+	    if (!current.hasRemaining())
+		flushBuffer();
+	}
+    }
+
+    public void write(byte[] b) throws IOException{
+	write(b, 0, b.length);
+    }
+
+    public void write(String s) throws IOException{
+	write(s.getBytes(charset));
+    }
+
+    public void newLine() throws IOException{
+	write(lineSeparator);
+    }
+
+    /**
+     * Write a header line
+     * @param name the node name
+     */
+    public void writeHeader(String name) throws IOException{
+	write(">" + name);
+	newLine();
+    }
+
+    /**
+     * Write a sequence (without a line break)
+     * @param seq the sequence
+     */
+    public void writeSequence(PackedSeq seq) throws IOException{
+	int length = seq.length();
+	if (alleleBytes == null){
+	    seq.decode(alphabet, getDecoded(length));
+	    write(new String(decoded, 0, length));
+	    return;
+	}
+	if (encoded.length < length)
+	    encoded = new byte[length];
+	seq.encode(alleleBytes, encoded);
+	write(encoded, 0, length);
+    }
+
+    /**
+     * Write a sequence given by its packed words (see PackedSeq.writeWords()), without a line break
+     * @param words the packed words
+     * @param length the sequence length
+     */
+    public void writeSequence(LongBuffer words, int length) throws IOException{
+	if (alleleBytes == null){
+	    PackedSeq.decodeWords(words, length, alphabet, getDecoded(length));
+	    write(new String(decoded, 0, length));
+	    return;
+	}
+	if (encoded.length < length)
+	    encoded = new byte[length];
+	PackedSeq.encodeWords(words, length, alleleBytes, encoded);
+	write(encoded, 0, length);
+    }
+
+    private char[] getDecoded(int length){
+	if (decoded.length < length)
+	    decoded = new char[length];
+	return decoded;
+    }
+
+    /**
+     * Write out what is left, stop the writer thread and close the file
+     */
+    public void close() throws IOException{
+	try{
+	    if (current.position() > 0)
+		flushBuffer();
+	    full.put(END);
+	    writer.join();
+	}catch(InterruptedException e){
+	    throw new InterruptedIOException("writing " + fileName + " interrupted");
+	}finally{
+	    channel.close();
+	}
+	if (failure != null)
+	    throw failure;
+    }
+}
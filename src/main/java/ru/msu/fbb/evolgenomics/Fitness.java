@@ -14,8 +14,7 @@ public class Fitness{
      */
     public static void gammaFitness(double[] fitness, double alpha, double beta,
 				    RandomNumberGenerator random){
-	for (int i = 0; i < fitness.length; i++)
-	    fitness[i] = random.sampleGamma(alpha, beta);
+	random.fillGamma(fitness, alpha, beta);
     }
     /**
      * Fill the fitness vector by sampling from the gamma distribution with parameters from config
@@ -36,8 +35,7 @@ public class Fitness{
      * @param random the RandomNumberGenerator object providing the RNG to be used
      */
     public static void logNormFitness(double[] fitness, double norm_mean, double norm_stdev, RandomNumberGenerator random){
-	for (int i = 0; i < fitness.length; i++)
-	    fitness[i] = random.sampleLogNormal(norm_mean, norm_stdev);
+	random.fillLogNormal(fitness, norm_mean, norm_stdev);
     }
 
     /**
@@ -61,11 +59,15 @@ public class Fitness{
      * Randomly permute the fitness vector
      * @param fitness  vector to shuffle (in place) 
      * @param random the RandomNumberGenerator object providing the RNG to be used
+     * @param permutation array to store the permutation in (allocated if null)
+     * @return the permutation: the new fitness[k] is the old fitness[permutation[k]]
      */
-    public static void shuffleFitness(double [] fitness,
-				      RandomNumberGenerator random){
-	
-	random.shuffleArray(fitness);
+    public static int[] shuffleFitness(double [] fitness,
+				       RandomNumberGenerator random, int[] permutation){
+	if (permutation == null)
+	    permutation = new int[fitness.length];
+	random.shuffleArray(fitness, permutation);
+	return permutation;
     }
     
     /**
@@ -6,22 +6,21 @@ import java.io.File;
  * A new landscape object is created if this is the first time a landscape change is made 
  * on the current tree branch, or if landscapes are shared between parallel branches.
  * Otherwise, the landscape change occurs on the same object (to save on object creation)
+ *
+ * A Landscape is a thin per-branch handle: Q, pi and the rest of what is computed from the
+ * fitness vector are kept in a LandscapeCore, which is shared (rather than copied) when
+ * the handle is copied, and replaced by a new core when a landscape with a shared core changes.
  */
 
 public class Landscape{
-    //link to the next landscape if the landscapes are shared between parallel branches
-    private Landscape nextLandscape; 
-    private double[][] Q;  //substitution-rate matrix Q
-    private double pi[];   // stationary probability vector pi
-    private double fitness[]; //fitness vector for the landsacpe
-    //    private boolean piComputed = false; //this is set when Q and pi have been computed for the landscape
-    private int alphabetSize = Parameters.getAlphabetSize(); 
+    //if the landscapes are shared between parallel branches, the chain of shared landscapes
+    //and the position of this one in it
+    private SharedLandscapeChain chain;
+    private long epoch;
+    private LandscapeCore core; //the fitness vector, Q, pi and the sampling tables
     //landscape change time will be subtracted as branch time is eaten up.
     private double timeTillLandscapeChange = Double.POSITIVE_INFINITY;     
-    private double diagQtimesPi = -1; //let's cache it so we don't recompute
-
-    //cache the memory space to avoid re-allocating it each time we pick new character
-    private double[] transitionVect; 
+    private int[] shufflePermutation; //work space for the shuffles
 
     //the PRNG local to the EvolutionaryProcess creating the Landscape
     RandomNumberGenerator random;
@@ -35,18 +34,21 @@ public class Landscape{
      * @param random the RandomNumberGenerator object providing the RNG to be used
      */
     public Landscape(RandomNumberGenerator random, Model model){//gets the initialization values from Model
-	this.alphabetSize = Parameters.getAlphabet().length();
-	Q = new double[alphabetSize][alphabetSize];
-	pi = new double[alphabetSize];
-
-	fitness = new double[alphabetSize];
+	int alphabetSize = Parameters.getAlphabet().length();
+	double[] fitness = new double[alphabetSize];
 	this.random = random;
 	this.model = model;
+	timeTillLandscapeChange = model.getLandscapeChangeInterval();	
 	InitialFitness initialFitnessDefinition = model.getInitialFitnessDefinition();
 	switch(initialFitnessDefinition){
 	case FILE :
-	    fitness = model.getInitialFitnessFromFile();
-	    break;
+	    //the same in every instance, so the core comes from the cache
+	    core = LandscapeCache.get(model.peekInitialFitnessFromFile());
+	    if (Parameters.debug()){
+		System.out.println("initial fitness:");
+		System.out.println(java.util.Arrays.toString(core.getFitness()));    
+	    }
+	    return;
 	case FLAT:
 	    Fitness.flatFitness(fitness);
 	    break;
@@ -63,12 +65,7 @@ public class Landscape{
 	    System.out.println("initial fitness:");
 	    System.out.println(java.util.Arrays.toString(fitness));    
 	}
-	setQFromFitness();
-	computePi(); //not optimized
-	// //unset the flags for having computed pi
-	// piComputed = false;
-	diagQtimesPi = -1; 
-	timeTillLandscapeChange = model.getLandscapeChangeInterval();	
+	core = new LandscapeCore(fitness);
     }
     /**
      * Create the new Landsacpe object from the given fitness vector
@@ -76,35 +73,20 @@ public class Landscape{
      * @param random the RandomNumberGenerator object providing the RNG to be used
      */    
     public Landscape(double[] fitness, RandomNumberGenerator random, Model model){
-	this.fitness = java.util.Arrays.copyOf(fitness, fitness.length);
-	this.alphabetSize = fitness.length;
 	this.model = model;
-
-	
-	setQFromFitness();
-	computePi();
-	//	piComputed = false;
 	this.random = random;
+	core = new LandscapeCore(java.util.Arrays.copyOf(fitness, fitness.length));
     }
 
     /**
-     * Clone an existing landscape object
+     * Clone an existing landscape object.
+     * The clone shares the source's core, which becomes immutable, so this takes O(1)
      *
      * @param source the landscape to clone
      */
     public Landscape (Landscape source){
-	alphabetSize = source.alphabetSize;
-	this.fitness = java.util.Arrays.copyOf(source.fitness, source.fitness.length);
-	Q = new double[alphabetSize][alphabetSize];
-	//	this.piComputed = source.piComputed;
-	pi = new double[alphabetSize];
-	for (int i = 0; i < alphabetSize; i++){
-	    pi[i] = source.pi[i];
-	    for (int j = 0; j < alphabetSize; j++){
-		Q[i][j] = source.Q[i][j];
-	    }
-	}
-	this.diagQtimesPi = source.diagQtimesPi;
+	core = source.core;
+	core.share();
 	this.random = source.random;
 	this.model = source.model;
 	// child Landscape(s) having the same PRNG object as the parent
@@ -124,7 +106,15 @@ public class Landscape{
      * @return Q[i][j]
      */
     public double Qat(int i, int j){
-	return Q[i][j];
+	return core.Qat(i, j);
+    }
+
+    /**
+     * Get the dominating rate used by the uniformization engine
+     * @return max_i(-Q[i][i]), the largest substitution rate of any allele
+     */
+    public double getMaxRate(){
+	return core.getMaxRate();
     }
 
     /**
@@ -132,8 +122,15 @@ public class Landscape{
      * @return double vectore representing the stationary distribution for this landscape
      */   
     public double[] getPi(){
-	computePi();
-	return pi;
+	return core.getPi();
+    }
+
+    /**
+     * Draw an allele from the stationary distribution pi in O(1)
+     * @return index of the drawn allele
+     */
+    public byte sampleFromPi(){
+	return core.sampleFromPi(random);
     }
 
     
@@ -142,20 +139,32 @@ public class Landscape{
      * @return  \Sum_i -q_i* pi_i, the expected change rate
      */
     public double getDiagQtimesPi(){
-	//if no value is cached, recompute
-	if (diagQtimesPi == -1){
-	    computeDiagQtimesPi();
-	}
-	//otherwise, get the cached value
-	return diagQtimesPi;
+	return core.getDiagQtimesPi();
     }
     /** 
      * Get a copy of the fitness vector for this Landscape
      * @return a new double vector containing a copy of the fitness vector
      */
     public double[] getCopyOfFitness(){
+	double[] fitness = core.getFitness();
 	return java.util.Arrays.copyOf(fitness, fitness.length);
     }
+    /**
+     * Get the number of landscape changes that led to this landscape from the starting one
+     * (only kept track of if landscapes are shared between parallel branches)
+     */
+    public long getEpoch(){
+	return epoch;
+    }
+    /**
+     * Make this landscape a part of the chain of shared landscapes
+     * @param chain the chain
+     * @param epoch the position in the chain
+     */
+    void setChain(SharedLandscapeChain chain, long epoch){
+	this.chain = chain;
+	this.epoch = epoch;
+    }
     /**
      * Get the size of the allele alphabet
      */
@@ -176,94 +185,6 @@ public class Landscape{
 	return timeTillLandscapeChange;
     }
 
-    /*** Q normalization methods ***/
-    
-    /** 
-     * The expected substitution rate is not fixed, but is scaled to be 1 for flat landscape only
-     */
-    private void normalizeQToFlat (){
-	if (Parameters.debug())
-	    System.out.println("normalize to flat");
-
-	double normalizationFactor = alphabetSize -1.0f;
-	//why?  if all fitnesses are equal, the q_ij=1 for i!= j, and q_ii = -(n-1), where n is the alphabetSize
-	//pi's are: 1/n, so the weighted sum of diagonals = sum_n{-q_ii*p_i} = n * ((n-) * 1/n) = n-1
-	for(int i = 0; i < alphabetSize; i++)
-	    for(int j = 0; j < alphabetSize; j++)
-		Q[i][j] /= normalizationFactor;
-
-	computeDiagQtimesPi();
-    }
-    
-    /**
-     * Normalize so that \sum_i -Q[i][i] * pi[i] = 1, and the tree length is interpretable
-     * as the expected number of substitutions per site.  The approach of Z. Yang
-     */    
-    private void normalizeToOne(){
-	//we need pi for this, so compute it if not yet
-	//	if (!piComputed)
-	computePi();
-	double sumDiagP = 0;
-	for(int i = 0; i < alphabetSize; i++){
-	    sumDiagP -= Q[i][i] * pi[i];	    
-	}
-	for(int i = 0; i < alphabetSize; i++)
-	    for(int j = 0; j < alphabetSize; j++)
-		Q[i][j] /= sumDiagP;
-	computeDiagQtimesPi();
-    }
-    /**
-     * Wrapper function that chooses how to normalize (or scale) Q
-     */
-    private void normalizeQ(){
-	if(Parameters.getQNormalization())
-	    normalizeToOne();
-	else
-	    normalizeQToFlat();
-    }
-    /**
-     * compute \sum -Q[i][i] * pi[i], i.e. the instantaneous probability of _any_ transition
-     * we're caching it to save cycles, and computing it on demand b/c to avoid recomputing pi
-     */
-    private void computeDiagQtimesPi(){
-	//	if (!piComputed)
-	computePi();
-	double sumDiagP = 0;
-	for(int i = 0; i < alphabetSize; i++){
-	    sumDiagP -= Q[i][i] * pi[i];	    
-	}
-	diagQtimesPi = sumDiagP;
-	if (Parameters.debug()){
-	//check what we've got
-	    System.out.println("diagQtimesPi = " + diagQtimesPi); 
-	}
-    }
-    /**
-     * Set the values of Q and pi from the fitness vector
-     */
-    private void setQandPiFromFitness(){
-	setQFromFitness();
-	computePi();
-    }
-    /**
-     * Compute Q from the fitness vector
-     */
-    private void setQFromFitness(){
-	Q = QfromFitness.generateQ(fitness);
-	normalizeQ();
-    }
-    /**
-     * Compute pi; if the user-supplied a mutation rate matrix, it is computed from Q; 
-     * otherwise, it is computed from the fitness vector directly
-     */
-    private void computePi(){
-	if (Parameters.isMutationRateMatrixDefined())
-	    pi = QfromFitness.PiFromQ(Q);
-	else
-	    pi = QfromFitness.PiFromFitness(fitness);
-	//	piComputed = true;
-    }
-
     /**
      * This is where landscape change occurs.  This method determines how exactly it is done
      *
@@ -279,20 +200,11 @@ public class Landscape{
 	
 	//first consider the case where landscapes are shared between paralell branches
 	if (Parameters.sharedLandscape()){  //if the landscapes are shared between parallel branches
-	    //check if we already have the next landscape (i.e., it's been generated on a
-	    //parallel branch that was visited earlier in the course of simulation execution)
-	    if (ls.nextLandscape == null){ // if it hasn't been generated before, do it now
-		if (Parameters.debug())
-		    System.out.println("generate shared landscape on demand");
-		ls.nextLandscape = new Landscape(ls); //at first, next landscape is identical to old one
-		ls.nextLandscape.changeQ(character, newFitness);  //then immediatley change it
-	    }	else{ //if it has been generated before, don't generate it
-		if (Parameters.debug())
-		    System.out.println("next shared landscape generated before");
-	    }
-	    //now return the next landscape - whether it's just been generated or saved from
-	    //some paralell branch
-	    currentLS = ls.nextLandscape; 
+	    //the next landscape may have been generated on a parallel branch that was visited
+	    //earlier in the course of simulation execution; if not, the chain generates it now
+	    if (ls.chain == null)
+		throw new IllegalStateException("shared landscape is not a part of a landscape chain");
+	    currentLS = ls.chain.next(ls, character, newFitness);
 	}else {//if landscapes evolve independently on parallel branches,
 	       // do branch-specific landscape change
 	    if (createNewLandscape) //if we need to create a new object for this branch, do it
@@ -306,21 +218,44 @@ public class Landscape{
     }
 
 
+
     /**
      * Change the landscape (ultimately, changing the Q matrix).  This is the where the 
-       * computation of the new landscape takes place
+       * computation of the new landscape takes place.
+     * If the core is shared with other landscapes, the new landscape gets a new core;
+     * otherwise the core is updated in place
      * @param character the current allele(index) - for allele-specific fitness change
      * @param newFtness new fitness vector specified by user; null if not specified      
      */
-    private void changeQ( byte character, double[] newFitness){
+    void changeQ( byte character, double[] newFitness){
+	changeQ(character, newFitness, random);
+    }
+
+    /**
+     * Same as changeQ(character, newFitness), drawing the new fitness from the given generator
+     * rather than from the landscape's own
+     */
+    void changeQ( byte character, double[] newFitness, RandomNumberGenerator random){
+	int[] permutation = null; //set if the new fitness is a permutation of the old one
+	int changedAllele = -1; //set if the new fitness differs from the old one at this allele only
+	boolean copyOnWrite = core.isShared();
+	double[] fitness = core.getFitness();
 
 	if (Parameters.debug()){
 	    System.out.println("old fitness:");
 	    System.out.println(java.util.Arrays.toString(fitness));
 	}
+	if (copyOnWrite)
+	    fitness = Arrays.copyOf(fitness, fitness.length);
 	if (model.getNewFitnessRule() == NewFitnessRule.USER_SET){
 	    if (newFitness != null){
-		fitness = Arrays.copyOf(newFitness, newFitness.length);
+		//the user-set landscapes are the same in every instance, so the core comes from the cache
+		core = LandscapeCache.get(newFitness);
+		if (Parameters.debug()){
+		    System.out.println("new fitness:");
+		    System.out.println(java.util.Arrays.toString(newFitness));
+		}
+		return;
 	    } else{
 		throw new InvalidParameterCombinationException("new fitness is USER_SET but the vector is not given (or given incorrectly");
 	    }		
@@ -338,10 +273,11 @@ public class Landscape{
 		    throw new InvalidParameterCombinationException(model.getInitialFitnessDefinition() + " not compatible with iid new fitness rule");
 		break;
 	    case SHUFFLE:
-		Fitness.shuffleFitness(fitness, random);
+		permutation = shufflePermutation = Fitness.shuffleFitness(fitness, random, shufflePermutation);
 		break;
 	    case CURRENT_ALLELE_DEPENDENT:
 		Fitness.alleleAgeDependentDiscreteChange(fitness, character, model);
+		changedAllele = character;
 		break;
 	    default:
 		throw new UnsupportedOperationException("fitness update rule " + model.getNewFitnessRule() + " not supported");
@@ -351,13 +287,27 @@ public class Landscape{
 	    System.out.println("new fitness:");
 	    System.out.println(java.util.Arrays.toString(fitness));
 	}
-	setQFromFitness(); //compute Q
-	computePi();
-	//	piComputed = false; //"clear" the cached pi value - we'd need to recompute it for new landscape
+	if (permutation != null && Parameters.isMutationRateMatrixUniform()){
+	    //Q and pi depend on the alleles only through their fitnesses,
+	    //so the new ones are the old ones with the alleles relabeled
+	    if (copyOnWrite)
+		core = new LandscapeCore(core, fitness, permutation);
+	    else
+		core.permute(permutation);
+	}else if (changedAllele >= 0){
+	    //only one row and column of Q change
+	    if (copyOnWrite)
+		core = new LandscapeCore(core, fitness, changedAllele);
+	    else
+		core.updateAllele(fitness, changedAllele);
+	}else{
+	    if (copyOnWrite)
+		core = new LandscapeCore(fitness);
+	    else
+		core.update(fitness);
+	}
     }
 
-
-    
     /**
      * When a substitution occurs, pick the new allele to replace the current one, 
      * according to the fitness landsacpe
@@ -365,35 +315,22 @@ public class Landscape{
      * @return index of the new allele
      */    
     public byte pickNewCharacter(byte currentValue){
-	if (transitionVect == null)
-	    transitionVect = new double[Q.length];
-	double qi = -Q[currentValue][currentValue];
+	return core.pickNewCharacter(currentValue, random);
+    }
 
-	//we don't need to have a separate zeroing-out of transitionVect, bc we reset it here
-	for (int i = 0; i < transitionVect.length; i++){
-	    if (i == currentValue)
-		transitionVect[i] = 0;
-	    else
-		transitionVect[i] = Q[currentValue][i];
-	}
-	//because q_i is slightly different from sum(q_ij), let's divide by the actual sum before the sampling
-	Utils.normalizeArray(transitionVect);
-	byte returnVal = (byte)random.sampleDiscrete(transitionVect);
-	return  returnVal;
+    /**
+     * For the uniformization engine: when a candidate event occurs at the dominating rate,
+     * accept or reject it according to the row of Q of the current allele
+     * @param currentValue  index of the current allele
+     * @return index of the new allele (currentValue if the candidate event is rejected)
+     */    
+    public byte pickUniformizedCharacter(byte currentValue){
+	return core.pickUniformizedCharacter(currentValue, random);
     }
     
 
     public void printParams(){
-	System.out.println("fitness:");
-	System.out.println(Arrays.toString(fitness));
-	System.out.println("pi:");
-	System.out.println(Arrays.toString(pi));
-	System.out.println("Q:");
-	for (int i = 0; i < Q.length; i++){
-	    System.out.println(Arrays.toString(Q[i]));
-	}
-	System.out.println("diagQtimesPi: " + getDiagQtimesPi());
-	System.out.println();
+	core.printParams();
     }
 
                                                                   
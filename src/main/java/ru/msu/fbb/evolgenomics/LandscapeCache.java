@@ -0,0 +1,87 @@
+import java.util.*;
+
+/**
+ * Process-wide cache of landscape cores, keyed by the fitness vector, shared by all the
+ * simulation threads.  Landscapes given by the user (INITIAL_FITNESS file, USER_SET fitness
+ * vectors) are the same in every instance, so Q, pi and the sampling tables are computed once
+ * rather than once per instance.
+ *
+ * The cached cores are materialized in full and marked shared, so they are never modified
+ * after they are built and can be used by any number of threads.  The other inputs of a core (the mutation rate
+ * matrix, the normalization, the simulation engine) are global parameters, fixed for the whole run,
+ * so the fitness vector determines the core.
+ * The cache holds at most LANDSCAPE_CACHE_SIZE cores, evicting the least recently used one.
+ */
+public class LandscapeCache{
+    private static int capacity = 256;
+    private static long numHits = 0;
+    private static long numMisses = 0;
+
+    private static final LinkedHashMap<FitnessKey, LandscapeCore> cache =
+	new LinkedHashMap<FitnessKey, LandscapeCore>(16, 0.75f, true){
+	protected boolean removeEldestEntry(Map.Entry<FitnessKey, LandscapeCore> eldest){
+	    return size() > capacity;
+	}
+    };
+
+    /**
+     * The fitness vector as a hash key: vectors are equal if they are equal bit for bit
+     */
+    private static class FitnessKey{
+	private final double[] fitness;
+	private final int hash;
+	FitnessKey(double[] fitness){
+	    this.fitness = fitness;
+	    hash = Arrays.hashCode(fitness);
+	}
+	public int hashCode(){return hash;}
+	public boolean equals(Object o){
+	    return (o instanceof FitnessKey) && Arrays.equals(fitness, ((FitnessKey)o).fitness);
+	}
+    }
+
+    /**
+     * Set the maximal number of cached cores (0 disables the cache)
+     * @param size the number of cores
+     */
+    public static synchronized void setCapacity(int size){
+	if (size < 0)
+	    throw new IllegalArgumentException("landscape cache size must be nonnegative: " + size);
+	capacity = size;
+	cache.clear();
+    }
+
+    public static synchronized long getNumHits(){return numHits;}
+    public static synchronized long getNumMisses(){return numMisses;}
+
+    /**
+     * Get the (shared) core for the given fitness vector, computing it if it is not cached
+     * @param fitness the fitness vector; not kept, so the caller may modify it afterwards
+     * @return the core, marked shared
+     */
+    public static LandscapeCore get(double[] fitness){
+	FitnessKey key = new FitnessKey(fitness);
+	synchronized(LandscapeCache.class){
+	    LandscapeCore core = cache.get(key);
+	    if (core != null){
+		numHits++;
+		return core;
+	    }
+	    numMisses++;
+	}
+	//compute outside the lock, so that the threads don't wait for each other;
+	//if another thread has computed the same core meanwhile, the first one in is kept
+	LandscapeCore core = new LandscapeCore(Arrays.copyOf(fitness, fitness.length));
+	core.materialize(); //nothing may be computed lazily once other threads can see the core
+	core.share();
+	synchronized(LandscapeCache.class){
+	    if (capacity == 0)
+		return core;
+	    LandscapeCore cached = cache.get(key);
+	    if (cached != null)
+		return cached;
+	    cache.put(new FitnessKey(core.getFitness()), core);
+	}
+	return core;
+    }
+}
@@ -0,0 +1,620 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The part of a fitness landscape that is determined by its fitness vector: Q, pi, the expected
+ * substitution rate and the tables for drawing alleles.
+ * Landscape objects are thin handles to a core, and several handles (for example, the landscapes
+ * inherited by sister branches) may share one.  A core is immutable once it is shared:
+ * a handle that changes its landscape gets a new core, and only a handle whose core has
+ * never been shared may update it in place.
+ *
+ * When the landscape changes, only Q itself (which the event rates, i.e. its diagonal, need)
+ * and the normalization are computed right away.  pi, diagQtimesPi and each of the sampling tables
+ * are computed the first time they are used, so a landscape that changes again before anything
+ * is drawn from it costs no more than its Q.
+ * The lazy computations modify the core, which is safe for a core shared by the landscapes of
+ * one simulation instance, since these are all used by one thread; the cores shared between threads
+ * (see LandscapeCache) are materialized in full before they are shared.
+ *
+ * @see Landscape
+ */
+public class LandscapeCore{
+    private int alphabetSize;
+    private double fitness[]; //fitness vector for the landsacpe
+    //substitution-rate matrix Q, unnormalized and in row-major order: Q[i][j] = Q[i*alphabetSize+j] * qScale
+    //(the normalization only changes qScale, so it takes O(alphabetSize) rather than a pass over Q)
+    private double[] Q;
+    private double qScale = 1;
+    private double[] expFitness; //exp(fitness - max fitness), left over from computing Q
+    private double maxFitness; //the max fitness expFitness is relative to
+    //number of single-allele updates since Q was last computed in full;
+    //Q is recomputed every FULL_RECOMPUTE_INTERVAL updates, so that the roundoff in the diagonal doesn't pile up
+    private int numAlleleUpdates = 0;
+    private static final int FULL_RECOMPUTE_INTERVAL = 256;
+    private double pi[];   // stationary probability vector pi
+    private boolean piComputed = false; //this is set when pi has been computed for the current Q
+    private double[][] piWorkspace; //work space for computing pi from Q (with a mutation rate matrix)
+    private double diagQtimesPi = -1; //let's cache it so we don't recompute
+
+    private boolean shared = false; //is the core referenced by more than one Landscape?
+
+    //cache the memory space to avoid re-allocating it each time we rebuild the sampling tables
+    private double[] transitionVect;
+
+    //alias tables for drawing the new allele from each row of Q (rowTables[i] for current allele i)
+    //and for drawing alleles from pi, so that the draws are O(1)
+    private AliasTable[] rowTables;
+    private AliasTable piTable;
+    //the tables are (re)built when they are first used after Q changes:
+    //these are set for the tables not yet built for the current Q
+    private boolean[] rowTableStale;
+    private boolean[] uniformizedTableStale;
+    private boolean piTableStale;
+
+    //for the uniformization engine: the dominating rate max_i(-Q[i][i]) and the alias tables
+    //for the rows of the uniformized transition matrix P = I + Q/maxRate
+    private double maxRate;
+    private double maxUnscaledRate; //maxRate / qScale
+    private AliasTable[] uniformizedTables;
+
+    //a shuffled landscape is a relabeling of the old one, so instead of rebuilding the tables
+    //we relabel their output: index m of the tables stands for allele tableAllele[m]
+    private int[] tableAllele;
+    //work space for the shuffles
+    private int[] inversePermutation;
+    private double[] spareQ;
+    private double[] spareExpFitness;
+    private AliasTable[] spareTables;
+    private boolean[] spareFlags;
+
+    //counters over all the cores (reported with COLLECT_STATS): the number of times Q has been computed
+    //and the number of sampling tables invalidated by a change of Q and actually built
+    private static final AtomicLong numQComputed = new AtomicLong();
+    private static final AtomicLong numTablesInvalidated = new AtomicLong();
+    private static final AtomicLong numTablesBuilt = new AtomicLong();
+
+    /**
+     * Create the core for the given fitness vector
+     * @param fitness the fitness vector (the core keeps it, so it must not be modified by the caller)
+     */
+    public LandscapeCore(double[] fitness){
+	this.fitness = fitness;
+	alphabetSize = fitness.length;
+	allocateTables();
+	computeFromFitness();
+    }
+
+    /**
+     * Create the core for a permutation of another core's fitness vector, by relabeling
+     * the alleles of the other core rather than computing anything.
+     * Only valid if the mutation rates are uniform
+     * @param source the core of the old fitness vector
+     * @param fitness the new fitness vector (kept by the core)
+     * @param permutation the new fitness[k] is the old fitness[permutation[k]]
+     */
+    public LandscapeCore(LandscapeCore source, double[] fitness, int[] permutation){
+	source.computePi();
+	this.fitness = fitness;
+	alphabetSize = source.alphabetSize;
+	allocateTables();
+	Q = new double[alphabetSize * alphabetSize];
+	pi = new double[alphabetSize];
+	expFitness = new double[alphabetSize];
+	inversePermutation = new int[alphabetSize];
+	//allele k now plays the role of the old allele permutation[k];
+	//the tables not built in the source are not built here either
+	for (int k = 0; k < alphabetSize; k++){
+	    int old = permutation[k];
+	    inversePermutation[old] = k;
+	    int oldRow = old * alphabetSize;
+	    for (int l = 0; l < alphabetSize; l++)
+		Q[k * alphabetSize + l] = source.Q[oldRow + permutation[l]];
+	    pi[k] = source.pi[old];
+	    expFitness[k] = source.expFitness[old];
+	    if (!source.rowTableStale[old]){
+		rowTables[k] = new AliasTable(source.rowTables[old]);
+		rowTableStale[k] = false;
+	    }
+	    if (uniformizedTables != null && !source.uniformizedTableStale[old]){
+		uniformizedTables[k] = new AliasTable(source.uniformizedTables[old]);
+		uniformizedTableStale[k] = false;
+	    }
+	}
+	if (!source.piTableStale){
+	    piTable = new AliasTable(source.piTable);
+	    piTableStale = false;
+	}
+	for (int m = 0; m < alphabetSize; m++)
+	    tableAllele[m] = inversePermutation[source.tableAllele[m]];
+	qScale = source.qScale;
+	maxFitness = source.maxFitness; //the same for any order
+	numAlleleUpdates = source.numAlleleUpdates;
+	piComputed = true;
+	diagQtimesPi = source.diagQtimesPi;
+	maxRate = source.maxRate;
+	maxUnscaledRate = source.maxUnscaledRate;
+    }
+
+    /**
+     * Create the core for another core's fitness vector with the fitness of one allele changed,
+     * by updating a copy of the other core's Q in O(alphabetSize) (see updateAllele())
+     * @param source the core of the old fitness vector
+     * @param fitness the new fitness vector (kept by the core)
+     * @param character the allele whose fitness has changed
+     */
+    public LandscapeCore(LandscapeCore source, double[] fitness, int character){
+	alphabetSize = source.alphabetSize;
+	allocateTables();
+	Q = Arrays.copyOf(source.Q, source.Q.length);
+	expFitness = Arrays.copyOf(source.expFitness, alphabetSize);
+	maxFitness = source.maxFitness;
+	numAlleleUpdates = source.numAlleleUpdates;
+	updateAllele(fitness, character);
+    }
+
+    /**
+     * Allocate the arrays of tables (the tables themselves are created when they are first built),
+     * all of them stale
+     */
+    private void allocateTables(){
+	rowTables = new AliasTable[alphabetSize];
+	rowTableStale = new boolean[alphabetSize];
+	Arrays.fill(rowTableStale, true);
+	if (Parameters.getSimulationEngine() == SimulationEngine.UNIFORMIZATION){
+	    uniformizedTables = new AliasTable[alphabetSize];
+	    uniformizedTableStale = new boolean[alphabetSize];
+	    Arrays.fill(uniformizedTableStale, true);
+	}
+	piTableStale = true;
+	tableAllele = new int[alphabetSize];
+	for (int i = 0; i < alphabetSize; i++)
+	    tableAllele[i] = i;
+    }
+
+    /*** setters and getters ***/
+
+    /**
+     * @return true if the core is referenced by more than one Landscape (and so must not change)
+     */
+    public boolean isShared(){return shared;}
+
+    /**
+     * Mark the core as referenced by more than one Landscape; from now on, it is immutable
+     */
+    public void share(){shared = true;}
+
+    /**
+     * @return the fitness vector itself (not a copy)
+     */
+    double[] getFitness(){return fitness;}
+
+    /**
+     * Get the value of[i][j]
+     * @param i i'th coordinate of Q[i][j]
+     * @param j j'th coordinateof Q[i][j]
+     * @return Q[i][j]
+     */
+    public double Qat(int i, int j){
+	return Q[i * alphabetSize + j] * qScale;
+    }
+
+    /**
+     * Get the dominating rate used by the uniformization engine
+     * @return max_i(-Q[i][i]), the largest substitution rate of any allele
+     */
+    public double getMaxRate(){
+	return maxRate;
+    }
+
+    /**
+     * Get the stationary distribution vector pi for this landscape
+     * @return double vectore representing the stationary distribution for this landscape
+     */
+    public double[] getPi(){
+	computePi(); //does nothing if pi is current
+	return pi;
+    }
+
+    /**
+     * Get the \Sum_i -q_i* pi_i, the expected change rate
+     * @return  \Sum_i -q_i* pi_i, the expected change rate
+     */
+    public double getDiagQtimesPi(){
+	//if no value is cached, recompute
+	if (diagQtimesPi == -1){
+	    computeDiagQtimesPi();
+	}
+	//otherwise, get the cached value
+	return diagQtimesPi;
+    }
+
+    /**
+     * Compute everything that is computed lazily: pi, diagQtimesPi and all the sampling tables.
+     * A core must be materialized before it is shared between threads
+     */
+    public void materialize(){
+	getDiagQtimesPi();
+	if (piTableStale)
+	    buildPiTable();
+	for (int i = 0; i < alphabetSize; i++){
+	    if (rowTableStale[i])
+		buildRowTable(i);
+	    if (uniformizedTables != null && uniformizedTableStale[i])
+		buildUniformizedTable(i);
+	}
+    }
+
+    /**
+     * @return the number of times Q has been computed (in full or for a single allele) in any core
+     */
+    public static long getNumQComputed(){return numQComputed.get();}
+    /**
+     * @return the number of sampling tables that have been invalidated by a change of Q in any core
+     * (i.e., the number of tables that computing all of them eagerly would have taken)
+     */
+    public static long getNumTablesInvalidated(){return numTablesInvalidated.get();}
+    /**
+     * @return the number of sampling tables that have been built in any core
+     */
+    public static long getNumTablesBuilt(){return numTablesBuilt.get();}
+
+    /*** in-place updates, for cores that are not shared ***/
+
+    /**
+     * Recompute the core in place for a new fitness vector
+     * @param fitness the new fitness vector (kept by the core)
+     */
+    public void update(double[] fitness){
+	checkNotShared();
+	this.fitness = fitness;
+	computeFromFitness();
+    }
+
+    /**
+     * Update the core in place after the fitness of a single allele has changed, in O(alphabetSize)
+     * rather than O(alphabetSize^2): only row and column character of Q are recomputed,
+     * the normalization and diagQtimesPi take a pass over the diagonal, and pi is
+     * the normalized exp(fitness) (the LU solve is still needed with a mutation rate matrix).
+     * The sampling tables all depend on column character, so they are rebuilt when they are next used
+     * @param fitness the new fitness vector (kept by the core), differing from the old one
+     * at position character only
+     * @param character the allele whose fitness has changed
+     */
+    public void updateAllele(double[] fitness, int character){
+	checkNotShared();
+	this.fitness = fitness;
+	if (numAlleleUpdates >= FULL_RECOMPUTE_INTERVAL){
+	    computeFromFitness();
+	    return;
+	}
+	numAlleleUpdates++;
+	numQComputed.incrementAndGet();
+	maxFitness = QfromFitness.updateQ(fitness, Q, expFitness, character, maxFitness);
+	qScale = 1;
+	piComputed = false;
+	diagQtimesPi = -1;
+	normalizeQ();
+	invalidateTables();
+	computeMaxRate();
+    }
+
+    /**
+     * Relabel the alleles in place after the fitness vector has been permuted, without recomputing
+     * anything: Q, pi, expFitness and the rows of the sampling tables are permuted, the tables' output
+     * is relabeled, and maxFitness, diagQtimesPi and maxRate do not change.
+     * Only valid if the mutation rates are uniform
+     * @param permutation the new fitness[k] is the old fitness[permutation[k]]
+     */
+    public void permute(int[] permutation){
+	checkNotShared();
+	computePi(); //pi is permuted with the rest, so it must be there
+	if (spareQ == null){
+	    spareQ = new double[alphabetSize * alphabetSize];
+	    spareExpFitness = new double[alphabetSize];
+	    spareTables = new AliasTable[alphabetSize];
+	    spareFlags = new boolean[alphabetSize];
+	}
+	if (inversePermutation == null)
+	    inversePermutation = new int[alphabetSize];
+	if (transitionVect == null)
+	    transitionVect = new double[alphabetSize];
+	//allele k now plays the role of the old allele permutation[k]
+	for (int k = 0; k < alphabetSize; k++){
+	    inversePermutation[permutation[k]] = k;
+	    int oldRow = permutation[k] * alphabetSize;
+	    for (int l = 0; l < alphabetSize; l++)
+		spareQ[k * alphabetSize + l] = Q[oldRow + permutation[l]];
+	}
+	double[] oldQ = Q;
+	Q = spareQ;
+	spareQ = oldQ;
+
+	System.arraycopy(pi, 0, transitionVect, 0, alphabetSize);
+	for (int k = 0; k < alphabetSize; k++){
+	    pi[k] = transitionVect[permutation[k]];
+	    spareExpFitness[k] = expFitness[permutation[k]];
+	}
+	double[] oldExpFitness = expFitness;
+	expFitness = spareExpFitness;
+	spareExpFitness = oldExpFitness;
+
+	permuteTables(rowTables, rowTableStale, permutation);
+	if (uniformizedTables != null)
+	    permuteTables(uniformizedTables, uniformizedTableStale, permutation);
+	for (int m = 0; m < alphabetSize; m++)
+	    tableAllele[m] = inversePermutation[tableAllele[m]];
+    }
+
+    private void checkNotShared(){
+	if (shared)
+	    throw new IllegalStateException("a shared landscape core cannot be modified");
+    }
+
+    /**
+     * Reorder the per-allele tables so that tables[k] becomes the old tables[permutation[k]]
+     * @param tables the tables, reordered in place
+     * @param stale the tables' stale flags, reordered in place
+     * @param permutation the permutation of the alleles
+     */
+    private void permuteTables(AliasTable[] tables, boolean[] stale, int[] permutation){
+	for (int k = 0; k < alphabetSize; k++){
+	    spareTables[k] = tables[permutation[k]];
+	    spareFlags[k] = stale[permutation[k]];
+	}
+	System.arraycopy(spareTables, 0, tables, 0, alphabetSize);
+	System.arraycopy(spareFlags, 0, stale, 0, alphabetSize);
+    }
+
+    /**
+     * Compute Q and the normalization from the fitness vector, leaving the rest to be computed on demand
+     */
+    private void computeFromFitness(){
+	numAlleleUpdates = 0;
+	numQComputed.incrementAndGet();
+	setQFromFitness();
+	//the tables are built from Q, whose alleles are not relabeled
+	for (int i = 0; i < alphabetSize; i++)
+	    tableAllele[i] = i;
+	invalidateTables();
+	computeMaxRate();
+    }
+
+    /*** Q normalization methods ***/
+
+    /**
+     * The expected substitution rate is not fixed, but is scaled to be 1 for flat landscape only
+     */
+    private void normalizeQToFlat (){
+	if (Parameters.debug())
+	    System.out.println("normalize to flat");
+
+	double normalizationFactor = alphabetSize -1.0f;
+	//why?  if all fitnesses are equal, the q_ij=1 for i!= j, and q_ii = -(n-1), where n is the alphabetSize
+	//pi's are: 1/n, so the weighted sum of diagonals = sum_n{-q_ii*p_i} = n * ((n-) * 1/n) = n-1
+	qScale = 1.0 / normalizationFactor;
+	//diagQtimesPi (and pi) are computed on demand
+    }
+
+    /**
+     * Normalize so that \sum_i -Q[i][i] * pi[i] = 1, and the tree length is interpretable
+     * as the expected number of substitutions per site.  The approach of Z. Yang
+     */
+    private void normalizeToOne(){
+	//we need pi for this, so compute it if not yet
+	computePi();
+	double sumDiagP = 0;
+	for(int i = 0; i < alphabetSize; i++){
+	    sumDiagP -= Q[i * alphabetSize + i] * pi[i];
+	}
+	qScale = 1.0 / sumDiagP;
+	computeDiagQtimesPi();
+    }
+    /**
+     * Wrapper function that chooses how to normalize (or scale) Q
+     */
+    private void normalizeQ(){
+	if(Parameters.getQNormalization())
+	    normalizeToOne();
+	else
+	    normalizeQToFlat();
+    }
+    /**
+     * compute \sum -Q[i][i] * pi[i], i.e. the instantaneous probability of _any_ transition
+     * we're caching it to save cycles, and computing it on demand b/c to avoid recomputing pi
+     */
+    private void computeDiagQtimesPi(){
+	computePi(); //does nothing if pi is current (scaling Q doesn't change pi)
+	double sumDiagP = 0;
+	for(int i = 0; i < alphabetSize; i++){
+	    sumDiagP -= Q[i * alphabetSize + i] * pi[i];
+	}
+	diagQtimesPi = sumDiagP * qScale;
+	if (Parameters.debug()){
+	//check what we've got
+	    System.out.println("diagQtimesPi = " + diagQtimesPi);
+	}
+    }
+    /**
+     * Compute Q from the fitness vector
+     */
+    private void setQFromFitness(){
+	if (Q == null)
+	    Q = new double[alphabetSize * alphabetSize];
+	if (expFitness == null)
+	    expFitness = new double[alphabetSize];
+	maxFitness = QfromFitness.generateQ(fitness, Q, expFitness);
+	qScale = 1;
+	piComputed = false;
+	diagQtimesPi = -1;
+	normalizeQ();
+    }
+    /**
+     * Compute pi; if the user-supplied a mutation rate matrix, it is computed from Q;
+     * otherwise, it is computed from the fitness vector directly
+     * (pi is proportional to exp(fitness), which computing Q has left in expFitness)
+     */
+    private void computePi(){
+	if (piComputed)
+	    return;
+	if (pi == null || pi.length != alphabetSize)
+	    pi = new double[alphabetSize];
+	if (Parameters.isMutationRateMatrixDefined()){
+	    if (piWorkspace == null)
+		piWorkspace = new double[alphabetSize][alphabetSize];
+	    QfromFitness.PiFromQ(Q, pi, piWorkspace);
+	}else{
+	    System.arraycopy(expFitness, 0, pi, 0, alphabetSize);
+	    Utils.normalizeArray(pi);
+	}
+	piComputed = true;
+    }
+
+    /*** the sampling tables ***/
+
+    /**
+     * Mark all the sampling tables as stale after Q has changed
+     */
+    private void invalidateTables(){
+	Arrays.fill(rowTableStale, true);
+	int numTables = alphabetSize + 1;
+	if (uniformizedTables != null){
+	    Arrays.fill(uniformizedTableStale, true);
+	    numTables += alphabetSize;
+	}
+	piTableStale = true;
+	numTablesInvalidated.addAndGet(numTables);
+    }
+
+    /**
+     * Compute the dominating rate for the uniformization engine
+     */
+    private void computeMaxRate(){
+	maxUnscaledRate = 0;
+	for (int i = 0; i < alphabetSize; i++)
+	    maxUnscaledRate = Math.max(maxUnscaledRate, -Q[i * alphabetSize + i]);
+	maxRate = maxUnscaledRate * qScale;
+    }
+
+    /**
+     * (Re)build the alias table for pi
+     */
+    private void buildPiTable(){
+	computePi();
+	if (transitionVect == null)
+	    transitionVect = new double[alphabetSize];
+	if (piTable == null)
+	    piTable = new AliasTable(alphabetSize);
+	for (int m = 0; m < alphabetSize; m++)
+	    transitionVect[m] = pi[tableAllele[m]];
+	piTable.build(transitionVect);
+	piTableStale = false;
+	numTablesBuilt.incrementAndGet();
+    }
+
+    /**
+     * (Re)build the alias table for drawing the new allele from row i of Q
+     * @param i the current allele
+     */
+    private void buildRowTable(int i){
+	if (transitionVect == null)
+	    transitionVect = new double[alphabetSize];
+	if (rowTables[i] == null)
+	    rowTables[i] = new AliasTable(alphabetSize);
+	//the diagonal is not a transition;  the off-diagonal entries need not add up to
+	//exactly -Q[i][i], the table normalizes by their actual sum
+	//(nor does the scale of Q matter)
+	int row = i * alphabetSize;
+	for (int m = 0; m < alphabetSize; m++){
+	    int j = tableAllele[m];
+	    transitionVect[m] = (i == j) ? 0 : Q[row + j];
+	}
+	rowTables[i].build(transitionVect);
+	rowTableStale[i] = false;
+	numTablesBuilt.incrementAndGet();
+    }
+
+    /**
+     * (Re)build the alias table for row i of P = I + Q/maxRate:
+     * a candidate event at allele i moves to allele j with probability Q[i][j]/maxRate,
+     * and is rejected (stays at i) with the remaining probability
+     * @param i the current allele
+     */
+    private void buildUniformizedTable(int i){
+	if (transitionVect == null)
+	    transitionVect = new double[alphabetSize];
+	if (uniformizedTables[i] == null)
+	    uniformizedTables[i] = new AliasTable(alphabetSize);
+	int row = i * alphabetSize;
+	int stay = 0; //the table index of allele i
+	double offDiagonal = 0;
+	for (int m = 0; m < alphabetSize; m++){
+	    int j = tableAllele[m];
+	    if (i == j){
+		stay = m;
+		transitionVect[m] = 0;
+	    }else
+		transitionVect[m] = Q[row + j] / maxUnscaledRate;
+	    offDiagonal += transitionVect[m];
+	}
+	transitionVect[stay] = Math.max(0, 1.0 - offDiagonal);
+	uniformizedTables[i].build(transitionVect);
+	uniformizedTableStale[i] = false;
+	numTablesBuilt.incrementAndGet();
+    }
+
+    /*** drawing alleles ***/
+
+    /**
+     * Draw an allele from the stationary distribution pi in O(1)
+     * @param random the RandomNumberGenerator object providing the RNG to be used
+     * @return index of the drawn allele
+     */
+    public byte sampleFromPi(RandomNumberGenerator random){
+	if (piTableStale)
+	    buildPiTable();
+	return (byte)tableAllele[piTable.sample(random)];
+    }
+
+    /**
+     * When a substitution occurs, pick the new allele to replace the current one,
+     * according to the fitness landsacpe
+     * @param currentValue  index of the current allele
+     * @param random the RandomNumberGenerator object providing the RNG to be used
+     * @return index of the new allele
+     */
+    public byte pickNewCharacter(byte currentValue, RandomNumberGenerator random){
+	if (rowTableStale[currentValue])
+	    buildRowTable(currentValue);
+	return (byte)tableAllele[rowTables[currentValue].sample(random)];
+    }
+
+    /**
+     * For the uniformization engine: when a candidate event occurs at the dominating rate,
+     * accept or reject it according to the row of Q of the current allele
+     * @param currentValue  index of the current allele
+     * @param random the RandomNumberGenerator object providing the RNG to be used
+     * @return index of the new allele (currentValue if the candidate event is rejected)
+     */
+    public byte pickUniformizedCharacter(byte currentValue, RandomNumberGenerator random){
+	if (uniformizedTableStale[currentValue])
+	    buildUniformizedTable(currentValue);
+	return (byte)tableAllele[uniformizedTables[currentValue].sample(random)];
+    }
+
+    public void printParams(){
+	System.out.println("fitness:");
+	System.out.println(Arrays.toString(fitness));
+	System.out.println("pi:");
+	System.out.println(Arrays.toString(getPi()));
+	System.out.println("Q:");
+	double[] row = new double[alphabetSize];
+	for (int i = 0; i < alphabetSize; i++){
+	    for (int j = 0; j < alphabetSize; j++)
+		row[j] = Qat(i, j);
+	    System.out.println(Arrays.toString(row));
+	}
+	System.out.println("diagQtimesPi: " + getDiagQtimesPi());
+	System.out.println();
+    }
+}
@@ -39,6 +39,9 @@ public class Model{
     private HashMap<String, double[]> position2fitness; //map a string encoding branch and position
                                                                //to a fitness vector
     private HashMap<String, ChangeTime> changeBranchTimeFitness;
+    //the same, by node id (see resolveChangeBranches())
+    private double[] changeTimeByNode;
+    private double[][] newFitnessByNode;
 
     /** 
      * @return the user-specified root sequence, encoded as indices of the ALPHABET string, or null if it is not provided
@@ -108,28 +111,42 @@ public class Model{
     }
 
     
+    /**
+     * Resolve the branch names of the prespecified landscape changes to the node ids of the tree
+     * (only relevant if LANDSCAPCE_CHANGE_TIMING is specified_branch_and_time)
+     * @param tree the tree the simulation runs on
+     */
+    public void resolveChangeBranches(CompiledTree tree){
+	if (changeBranchTimeFitness == null)
+	    return;
+	changeTimeByNode = new double[tree.getNumNodes()];
+	Arrays.fill(changeTimeByNode, Double.NEGATIVE_INFINITY);
+	newFitnessByNode = new double[tree.getNumNodes()][];
+	for (Map.Entry<String, ChangeTime> entry : changeBranchTimeFitness.entrySet()){
+	    int node = tree.getNodeId(entry.getKey());
+	    if (node < 0){
+		System.err.println("Warning: branch " + entry.getKey() + " of the change branch time file is not in the tree");
+		continue;
+	    }
+	    changeTimeByNode[node] = entry.getValue().time;
+	    newFitnessByNode[node] = entry.getValue().fitness;
+	}
+    }
+
     /**
      * @param node finishing the branch that is queries
      * @return Double.NEGATIVE_INFINITY if no change this branch, time till the end node otherwise
      */
-    public double getChangeTimeThisBranch(BasicNode node){
-	String nodeName = node.toString();
-	if (changeBranchTimeFitness.containsKey(nodeName))
-	    return changeBranchTimeFitness.get(nodeName).time;
-	else
-	    return Double.NEGATIVE_INFINITY;
+    public double getChangeTimeThisBranch(int node){
+	return changeTimeByNode[node];
     }
 
     /**
      * @param node finishing the branch that is queries
      * @return null if no change this branch,  new fitnessime till the end node otherwise (which itself might be null);
      */
-    public double[] getNewFitnessThisBranch(BasicNode node){
-	String nodeName = node.toString();
-	if (changeBranchTimeFitness.containsKey(nodeName))
-	    return changeBranchTimeFitness.get(nodeName).fitness;
-	else
-	    return null;
+    public double[] getNewFitnessThisBranch(int node){
+	return newFitnessByNode[node];
     }
 
 
@@ -160,9 +177,18 @@ public class Model{
     }
 
     public double[] getInitialFitnessFromFile(){
+	double[] fitness = peekInitialFitnessFromFile();
+	return java.util.Arrays.copyOf(fitness, fitness.length);
+    }
+
+    /**
+     * Get the fitness vector read from the fitness file itself, rather than a copy; must not be modified
+     * (the file is read on the first call, which is safe to make from several threads)
+     */
+    synchronized double[] peekInitialFitnessFromFile(){
 	if (initialFitnessVectorFromFile == null)
 	    readFitnessFromFile();
-	return java.util.Arrays.copyOf(initialFitnessVectorFromFile, initialFitnessVectorFromFile.length);
+	return initialFitnessVectorFromFile;
     }
 
     public void readFitnessFromFile(){
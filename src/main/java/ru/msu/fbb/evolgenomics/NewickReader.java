@@ -0,0 +1,353 @@
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.CollationKey;
+import java.text.Collator;
+
+/**
+ * Single-pass reader of Newick tree files, building the CompiledTree directly.
+ * The file is read through a byte channel, and the nodes are numbered as they are opened, which is
+ * in preorder; the open internal nodes are kept on an explicit stack, so the depth of the tree
+ * is not limited by the call stack, and no intermediate object tree is built.
+ *
+ * The trees are read as the libnewicktree parser (which BasicTree is built on) reads them,
+ * so that node names and branch lengths are the same as they have always been:
+ * missing names are empty, missing lengths are 0, lengths are single precision, and
+ * leaves with repeated names are told apart (see renameRepeatedLeaves()).
+ * Names are runs of bytes other than blanks and ( ) , : ; [ " or are enclosed in double quotes;
+ * [comments] are skipped, and anything after the first ';' is ignored.
+ *
+ * @see CompiledTree
+ */
+public class NewickReader{
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final double[] POWERS_OF_TEN = new double[16]; //all exact
+    static{
+	POWERS_OF_TEN[0] = 1;
+	for (int i = 1; i < POWERS_OF_TEN.length; i++)
+	    POWERS_OF_TEN[i] = 10*POWERS_OF_TEN[i - 1];
+    }
+
+    private final String fileName;
+    private final FileChannel channel;
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    private int bufferPos = 0, bufferEnd = 0;
+    private long bufferStart = 0; //position in the file of the buffer contents
+    private final Charset charset = Charset.defaultCharset(); //the names are decoded as FileReader would
+    private int pushedBack = -2; //a byte read ahead by a token, -2 if none
+    private byte[] token = new byte[64];
+    private int tokenLength;
+
+    //the nodes read so far, in preorder
+    private int numNodes = 0;
+    private String[] names = new String[1024];
+    private int[] parent = new int[1024];
+    private double[] branchLength = new double[1024];
+
+    private NewickReader(String fileName, FileChannel channel){
+	this.fileName = fileName;
+	this.channel = channel;
+    }
+
+    /**
+     * Read the (first) tree of the given file
+     * @param fileName name of the file (including path, if not in current directory)
+     * @return the tree
+     * @throws IOException if the file can't be read or is not a well-formed Newick tree
+     */
+    public static CompiledTree read(String fileName) throws IOException{
+	FileInputStream in = null;
+	try{
+	    in = new FileInputStream(fileName);
+	}catch(FileNotFoundException e){
+	    System.err.println("Error: cannot open the tree file " + fileName);
+	    System.exit(-1);
+	}
+	try{
+	    NewickReader reader = new NewickReader(fileName, in.getChannel());
+	    reader.parse();
+	    return reader.build();
+	}finally{
+	    in.close();
+	}
+    }
+
+    /**
+     * Read the nodes of the tree into names, parent and branchLength
+     */
+    private void parse() throws IOException{
+	int[] stack = new int[64]; //the open internal nodes
+	int stackSize = 0;
+	int current = open(-1); //the root
+	boolean named = false, hasLength = false, closed = false; //what has been seen of the current node
+	while (true){
+	    int c = nextToken();
+	    switch (c){
+	    case '(':
+		if (named || hasLength || closed)
+		    throw error("unexpected '('");
+		if (stackSize == stack.length)
+		    stack = Arrays.copyOf(stack, 2*stackSize);
+		stack[stackSize++] = current;
+		current = open(current);
+		break;
+	    case ',':
+		if (stackSize == 0)
+		    throw error("unexpected ','");
+		current = open(stack[stackSize - 1]);
+		named = hasLength = closed = false;
+		break;
+	    case ')':
+		if (stackSize == 0)
+		    throw error("unexpected ')'");
+		current = stack[--stackSize];
+		named = hasLength = false;
+		closed = true;
+		break;
+	    case ':':
+		if (hasLength)
+		    throw error("repeated branch length");
+		branchLength[current] = readLength();
+		hasLength = true;
+		break;
+	    case ';':
+	    case -1:
+		if (stackSize > 0)
+		    throw error(stackSize + " unclosed '('");
+		return;
+	    default:
+		if (named || hasLength)
+		    throw error("unexpected name");
+		if (c == '"')
+		    readQuoted();
+		else
+		    readWord(c);
+		names[current] = new String(token, 0, tokenLength, charset);
+		named = true;
+	    }
+	}
+    }
+
+    /**
+     * Trim the node arrays and build the tree
+     */
+    private CompiledTree build(){
+	names = Arrays.copyOf(names, numNodes);
+	parent = Arrays.copyOf(parent, numNodes);
+	branchLength = Arrays.copyOf(branchLength, numNodes);
+	renameRepeatedLeaves(names, parent);
+	return new CompiledTree(names, parent, branchLength);
+    }
+
+    /**
+     * Add a new node (with empty name and zero branch length)
+     * @param p the parent of the node (-1 for the root)
+     * @return the node id
+     */
+    private int open(int p){
+	if (numNodes == names.length){
+	    names = Arrays.copyOf(names, 2*numNodes);
+	    parent = Arrays.copyOf(parent, 2*numNodes);
+	    branchLength = Arrays.copyOf(branchLength, 2*numNodes);
+	}
+	names[numNodes] = "";
+	parent[numNodes] = p;
+	return numNodes++;
+    }
+
+    private double readLength() throws IOException{
+	int c = nextToken();
+	if (isDelimiter(c)){ //no length after all
+	    pushedBack = c;
+	    return 0;
+	}
+	readWord(c);
+	//lengths have always been kept in single precision by the parser
+	return (float)parseToken();
+    }
+
+    /**
+     * Parse the number in token.  Plain decimals of up to 15 digits are parsed here: the digits
+     * and the power of ten are then exact, so their quotient is the correctly rounded value,
+     * which is what Double.parseDouble() (used for anything else) returns
+     */
+    private double parseToken() throws IOException{
+	int i = 0;
+	boolean negative = false;
+	if (token[0] == '-' || token[0] == '+'){
+	    negative = (token[0] == '-');
+	    i++;
+	}
+	long digits = 0;
+	int numDigits = 0, pointAt = -1;
+	for (; i < tokenLength; i++){
+	    byte b = token[i];
+	    if (b >= '0' && b <= '9' && numDigits < 15){
+		digits = 10*digits + (b - '0');
+		numDigits++;
+	    }else if (b == '.' && pointAt < 0)
+		pointAt = numDigits;
+	    else
+		break;
+	}
+	if (i == tokenLength && numDigits > 0){
+	    double value = digits / POWERS_OF_TEN[(pointAt < 0) ? 0 : numDigits - pointAt];
+	    return negative ? -value : value;
+	}
+	String s = new String(token, 0, tokenLength, charset);
+	try{
+	    return Double.parseDouble(s);
+	}catch(NumberFormatException e){
+	    throw error("bad branch length " + s);
+	}
+    }
+
+    /**
+     * Read a name or a number into token
+     * @param c the first byte
+     */
+    private void readWord(int c) throws IOException{
+	tokenLength = 0;
+	while (!isDelimiter(c) && c != '"'){
+	    append(c);
+	    c = next();
+	}
+	pushedBack = c;
+    }
+
+    /**
+     * Read a name enclosed in double quotes (the opening one already read) into token
+     */
+    private void readQuoted() throws IOException{
+	tokenLength = 0;
+	int c;
+	while ((c = next()) != '"'){
+	    if (c == -1)
+		throw error("unterminated quoted name");
+	    append(c);
+	}
+    }
+
+    private void append(int c){
+	if (tokenLength == token.length)
+	    token = Arrays.copyOf(token, 2*tokenLength);
+	token[tokenLength++] = (byte)c;
+    }
+
+    /**
+     * Skip blanks and comments
+     * @return the next byte that is neither, -1 at the end of the file
+     */
+    private int nextToken() throws IOException{
+	while (true){
+	    int c = next();
+	    if (c == '['){
+		while ((c = next()) != ']')
+		    if (c == -1)
+			throw error("unterminated comment");
+	    }else if (c == -1 || c > ' ')
+		return c;
+	}
+    }
+
+    private static boolean isDelimiter(int c){
+	return c <= ' ' || c == '(' || c == ')' || c == ',' || c == ':' || c == ';' || c == '[';
+    }
+
+    /**
+     * @return the next byte of the file, -1 at the end
+     */
+    private int next() throws IOException{
+	if (pushedBack != -2){
+	    int c = pushedBack;
+	    pushedBack = -2;
+	    return c;
+	}
+	if (bufferPos == bufferEnd){
+	    bufferStart += bufferEnd;
+	    buffer.clear();
+	    int n;
+	    do{
+		n = channel.read(buffer);
+	    }while (n == 0);
+	    bufferPos = bufferEnd = 0;
+	    if (n < 0)
+		return -1;
+	    bufferEnd = n;
+	}
+	return bytes[bufferPos++] & 0xff;
+    }
+
+    private IOException error(String message){
+	return new IOException("tree file " + fileName + ", byte " + (bufferStart + bufferPos) + ": " + message);
+    }
+
+    /**
+     * Tell apart the leaves with repeated names the way the libnewicktree parser does, so that the
+     * output is the same as it has always been.  The parser sorts the leaves by name (US collation rules,
+     * by which some different names are equal), and of each group of leaves with equal names it appends
+     * " 0", " 1", ... to the names in preorder; only the last leaf of the group that sorts last keeps its name.
+     * Internal node names are not changed.
+     * @param names the node names, in preorder
+     * @param parent the parent of each node
+     */
+    static void renameRepeatedLeaves(String[] names, int[] parent){
+	int n = names.length;
+	boolean[] isInternal = new boolean[n];
+	for (int v = 1; v < n; v++)
+	    isInternal[parent[v]] = true;
+	//names in printable ASCII are equal by the collation rules only if they are the same,
+	//so unless there are other names the names themselves are compared
+	boolean plain = true;
+	for (int v = 0; v < n && plain; v++)
+	    if (!isInternal[v])
+		for (int i = 0; i < names[v].length() && plain; i++)
+		    plain = (names[v].charAt(i) >= ' ' && names[v].charAt(i) <= '~');
+	Collator collator = Collator.getInstance(Locale.US);
+	Object[] key = new Object[n];
+	Map<Object, Integer> groupSize = new HashMap<Object, Integer>();
+	List<Object> repeatedKeys = new ArrayList<Object>();
+	for (int v = 0; v < n; v++){
+	    if (isInternal[v])
+		continue;
+	    key[v] = plain ? names[v] : collator.getCollationKey(names[v]);
+	    Integer size = groupSize.put(key[v], 1);
+	    if (size != null){
+		groupSize.put(key[v], size + 1);
+		if (size == 1)
+		    repeatedKeys.add(key[v]);
+	    }
+	}
+	if (repeatedKeys.isEmpty())
+	    return;
+	//only the repeated name that sorts last may sort last of all
+	Object lastKey = null;
+	for (Object k : repeatedKeys)
+	    if (lastKey == null || compareKeys(collator, lastKey, k) < 0)
+		lastKey = k;
+	for (int v = 0; v < n; v++)
+	    if (!isInternal[v] && compareKeys(collator, lastKey, key[v]) < 0){
+		lastKey = null;
+		break;
+	    }
+	Map<Object, Integer> numRenamed = new HashMap<Object, Integer>();
+	for (int v = 0; v < n; v++){
+	    if (isInternal[v] || groupSize.get(key[v]) == 1)
+		continue;
+	    Integer k = numRenamed.get(key[v]);
+	    k = (k == null) ? 0 : k;
+	    if (k < groupSize.get(key[v]) - 1 || !key[v].equals(lastKey))
+		names[v] = names[v] + " " + k;
+	    numRenamed.put(key[v], k + 1);
+	}
+    }
+
+    private static int compareKeys(Collator collator, Object a, Object b){
+	if (a instanceof CollationKey)
+	    return ((CollationKey)a).compareTo((CollationKey)b);
+	return collator.compare((String)a, (String)b);
+    }
+}
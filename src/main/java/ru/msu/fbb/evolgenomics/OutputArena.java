@@ -0,0 +1,145 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The sequence output of the MAPPED OUTPUT_MODE.  Every line of allnodes.merged.fasta has a known
+ * length (the sum of the sequence lengths of the instances), so the place of every (node, instance)
+ * sequence in the file is known in advance: the file is laid out and preallocated when the
+ * arena is created, with the header lines and line breaks already in place, and memory-mapped in
+ * windows of WINDOW_SIZE.  The simulation threads write each output node's sequence straight into
+ * its slot as soon as it is computed (see write()), so nothing is merged at the end and the
+ * sequences need not be kept.  The file is the same as the MERGED mode writes.
+ *
+ * The alleles are written one byte each (see FastaWriter.getAlleleBytes()), so every ALPHABET
+ * character must take exactly one byte in the default charset (see canMap()).
+ */
+public class OutputArena{
+    private static final int WINDOW_SHIFT = 27;
+    private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT; //128 MB
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] windows;
+    private final int[] outputIndex; //by node id, the node's place in the output order (-1 if not output)
+    private final long[] lineStart; //by output index, where the node's sequence line begins
+    private final long[] instanceOffset; //by instance id, where the instance's sequence begins in a line
+    private final int numOutput; //the number of output nodes
+    private final AtomicIntegerArray numWritten; //by instance id, the number of sequences written so far
+    private final byte[] alleleBytes;
+    private final ThreadLocal<byte[]> encoded = new ThreadLocal<byte[]>(){ //reused for every sequence of a thread
+	protected byte[] initialValue(){return new byte[0];}
+    };
+
+    /**
+     * @return true if the alleles can be written one byte each, as the arena needs
+     */
+    public static boolean canMap(){
+	return FastaWriter.getAlleleBytes(Parameters.getAlphabet().toCharArray(), Charset.defaultCharset()) != null;
+    }
+
+    /**
+     * Lay out, preallocate and map allnodes.merged.fasta, and write its header lines and line breaks
+     * @param tree the tree
+     * @param seqLength the sequence length of each instance, by instance id
+     */
+    public OutputArena(CompiledTree tree, int[] seqLength) throws IOException{
+	Charset charset = Charset.defaultCharset(); //as FastaWriter encodes the text
+	alleleBytes = FastaWriter.getAlleleBytes(Parameters.getAlphabet().toCharArray(), charset);
+	if (alleleBytes == null)
+	    throw new IllegalArgumentException("ALPHABET characters must take one byte each for the mapped output");
+	byte[] lineSeparator = System.getProperty("line.separator").getBytes(charset);
+	instanceOffset = new long[seqLength.length];
+	long lineLength = 0;
+	for (int i = 0; i < seqLength.length; i++){
+	    instanceOffset[i] = lineLength;
+	    lineLength += seqLength[i];
+	}
+	int[] order = tree.getOutputOrder();
+	outputIndex = new int[tree.getNumNodes()];
+	java.util.Arrays.fill(outputIndex, -1);
+	lineStart = new long[order.length];
+	byte[][] headers = new byte[order.length][];
+	int numOutput = 0;
+	long size = 0;
+	for (int node : order){
+	    if (!Parameters.isRetained(node))
+		continue;
+	    headers[numOutput] = (">" + tree.getName(node)).getBytes(charset);
+	    size += headers[numOutput].length + lineSeparator.length;
+	    lineStart[numOutput] = size;
+	    size += lineLength + lineSeparator.length;
+	    outputIndex[node] = numOutput++;
+	}
+	this.numOutput = numOutput;
+	numWritten = new AtomicIntegerArray(seqLength.length);
+
+	file = new RandomAccessFile("allnodes.merged.fasta", "rw");
+	file.setLength(size);
+	FileChannel channel = file.getChannel();
+	windows = new MappedByteBuffer[(int)((size + WINDOW_SIZE - 1) >>> WINDOW_SHIFT)];
+	for (int w = 0; w < windows.length; w++){
+	    long start = (long)w << WINDOW_SHIFT;
+	    windows[w] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(WINDOW_SIZE, size - start));
+	}
+	for (int k = 0; k < numOutput; k++){
+	    long headerStart = lineStart[k] - lineSeparator.length - headers[k].length;
+	    put(headerStart, headers[k], headers[k].length);
+	    put(lineStart[k] - lineSeparator.length, lineSeparator, lineSeparator.length);
+	    put(lineStart[k] + lineLength, lineSeparator, lineSeparator.length);
+	}
+    }
+
+    /**
+     * Write the sequence of a node into its slot; does nothing if the node is not output.
+     * Any number of threads may write at the same time, each to its own slots
+     * @param node the node
+     * @param instance the id of the simulation instance
+     * @param seq the node's sequence
+     */
+    public void write(int node, int instance, PackedSeq seq){
+	int k = outputIndex[node];
+	if (k < 0)
+	    return;
+	byte[] b = encoded.get();
+	if (b.length < seq.length()){
+	    b = new byte[seq.length()];
+	    encoded.set(b);
+	}
+	seq.encode(alleleBytes, b);
+	put(lineStart[k] + instanceOffset[instance], b, seq.length());
+	numWritten.incrementAndGet(instance);
+    }
+
+    /**
+     * Copy bytes into the file, across windows if need be
+     */
+    private void put(long position, byte[] b, int length){
+	int offset = 0;
+	while (length > 0){
+	    int w = (int)(position >>> WINDOW_SHIFT);
+	    int inWindow = (int)(position & (WINDOW_SIZE - 1));
+	    int n = (int)Math.min(length, WINDOW_SIZE - inWindow);
+	    ByteBuffer window = windows[w].duplicate(); //its own position, so the threads don't interfere
+	    window.position(inWindow);
+	    window.put(b, offset, n);
+	    position += n;
+	    offset += n;
+	    length -= n;
+	}
+    }
+
+    /**
+     * Close the file, once all the sequences are written (the mapped pages are written back by the system)
+     * @throws IOException if some sequences were never written (if a branch failed), so the file is incomplete
+     */
+    public void close() throws IOException{
+	file.close();
+	for (int i = 0; i < numWritten.length(); i++)
+	    if (numWritten.get(i) != numOutput)
+		throw new IOException("allnodes.merged.fasta is incomplete: instance " + i + " wrote "
+				      + numWritten.get(i) + " of its " + numOutput + " sequences");
+    }
+}
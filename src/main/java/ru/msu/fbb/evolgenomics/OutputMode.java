@@ -0,0 +1,26 @@
+/**
+ * Enum class for the OUTPUT_MODE options:
+ * MERGED keeps every simulation instance in memory until all of them are done, then writes the merged files,
+ * STREAMING spills each instance to a temporary file as soon as it is done and lets it go, so only
+ * about two instances per thread are in memory at a time, and merges the spilled instances at the end,
+ * MAPPED writes every sequence straight into its place in the (memory-mapped) sequence file as soon
+ * as it is computed, so no sequences are kept and nothing is merged (see OutputArena)
+ */
+
+public enum OutputMode{
+    MERGED, STREAMING, MAPPED;
+
+    /**
+     * Return the enum corresponding to the given string (case-insensitive)
+     * @param value the string to convert to enum
+     * @throws UnrecognizedValueException if the string is not recognized
+     */
+    static OutputMode stringToEnum(String value){
+	try{
+	    return valueOf(value.toUpperCase());
+	}
+	catch(IllegalArgumentException e){
+	    throw new UnrecognizedValueException("OUTPUT_MODE", value);
+	}
+    }
+}
@@ -0,0 +1,206 @@
+import java.nio.LongBuffer;
+
+/**
+ * A sequence of allele indices packed into longs, at the smallest of 2, 3, 5 or 8 bits per site
+ * that holds the alphabet (see getBitsPerSite()), so that an ACGT sequence takes a quarter of
+ * the memory of one allele per byte.
+ * Sites don't straddle words: each word holds 64/bits sites, the first one in the lowest bits.
+ *
+ * The words are kept in chunks of CHUNK_WORDS, which are copied on write: a copy of a sequence
+ * shares all the chunks of the original, and either of them copies a chunk only when it first
+ * changes a site in it.  So copying takes O(length/sitesPerChunk), and the sequences of a parent
+ * node and its children share everything but the chunks where the branches have substitutions.
+ */
+public class PackedSeq{
+    private static final int CHUNK_SHIFT = 4;
+    private static final int CHUNK_WORDS = 1 << CHUNK_SHIFT; //128 bytes
+
+    private final int length;
+    private final int bits; //bits per site
+    private final int sitesPerWord;
+    private final long mask;
+    private final long[][] chunks;
+    private final boolean[] owned; //is the chunk referenced by this sequence only?
+
+    /**
+     * Create a sequence of the given length (all sites holding allele 0), with the width
+     * chosen for the ALPHABET
+     * @param length the sequence length
+     */
+    public PackedSeq(int length){
+	this(length, getBitsPerSite(Parameters.getAlphabetSize()));
+    }
+
+    /**
+     * Create a sequence of the given length (all sites holding allele 0)
+     * @param length the sequence length
+     * @param bits the number of bits per site
+     */
+    PackedSeq(int length, int bits){
+	this.length = length;
+	this.bits = bits;
+	sitesPerWord = 64 / bits;
+	mask = (1L << bits) - 1;
+	int numWords = (length + sitesPerWord - 1) / sitesPerWord;
+	int numChunks = (numWords + CHUNK_WORDS - 1) >> CHUNK_SHIFT;
+	chunks = new long[numChunks][];
+	owned = new boolean[numChunks];
+	for (int c = 0; c < numChunks; c++){
+	    chunks[c] = new long[Math.min(CHUNK_WORDS, numWords - (c << CHUNK_SHIFT))];
+	    owned[c] = true;
+	}
+    }
+
+    /**
+     * Create a copy of another sequence, sharing its chunks (see the class comment)
+     * @param orig the sequence to copy
+     */
+    public PackedSeq(PackedSeq orig){
+	length = orig.length;
+	bits = orig.bits;
+	sitesPerWord = orig.sitesPerWord;
+	mask = orig.mask;
+	chunks = orig.chunks.clone();
+	owned = new boolean[chunks.length];
+	java.util.Arrays.fill(orig.owned, false);
+    }
+
+    /**
+     * Pack a sequence stored one allele per byte
+     * @param seq the sequence encoded as array of allele indices
+     * @return the packed sequence
+     */
+    public static PackedSeq fromBytes(byte[] seq){
+	PackedSeq packed = new PackedSeq(seq.length);
+	for (int i = 0; i < seq.length; i++)
+	    packed.set(i, seq[i]);
+	return packed;
+    }
+
+    /**
+     * @param alphabetSize the number of alleles
+     * @return the number of bits per site for the alphabet: 2, 3, 5 or 8
+     */
+    public static int getBitsPerSite(int alphabetSize){
+	if (alphabetSize <= 4)
+	    return 2;
+	if (alphabetSize <= 8)
+	    return 3;
+	if (alphabetSize <= 32)
+	    return 5;
+	return 8;
+    }
+
+    public int length(){return length;}
+
+    /**
+     * @param i the position
+     * @return the allele index at position i
+     */
+    public byte get(int i){
+	int w = i / sitesPerWord;
+	long word = chunks[w >> CHUNK_SHIFT][w & (CHUNK_WORDS - 1)];
+	return (byte)((word >>> (bits * (i - w * sitesPerWord))) & mask);
+    }
+
+    /**
+     * @param i the position
+     * @param allele the allele index to put at position i
+     */
+    public void set(int i, byte allele){
+	int w = i / sitesPerWord;
+	int shift = bits * (i - w * sitesPerWord);
+	int c = w >> CHUNK_SHIFT;
+	if (!owned[c]){
+	    chunks[c] = chunks[c].clone();
+	    owned[c] = true;
+	}
+	long[] chunk = chunks[c];
+	w &= CHUNK_WORDS - 1;
+	chunk[w] = (chunk[w] & ~(mask << shift)) | ((long)allele << shift);
+    }
+
+    /**
+     * @return the number of words the sequence is packed into
+     */
+    public int getNumWords(){return (length + sitesPerWord - 1) / sitesPerWord;}
+
+    /**
+     * Write the packed words (getNumWords() of them), for encodeWords() or decodeWords() to read back
+     * @param out the buffer to write to
+     */
+    public void writeWords(LongBuffer out){
+	for (long[] chunk : chunks)
+	    out.put(chunk);
+    }
+
+    /**
+     * Decode a sequence written by writeWords()
+     * @param in the buffer holding the words
+     * @param length the sequence length
+     * @param alphabet the character of each allele index
+     * @param out the array to decode into (at least length long)
+     */
+    public static void decodeWords(LongBuffer in, int length, char[] alphabet, char[] out){
+	int bits = getBitsPerSite(alphabet.length);
+	int sitesPerWord = 64 / bits;
+	long mask = (1L << bits) - 1;
+	for (int i = 0; i < length; ){
+	    long word = in.get();
+	    int end = Math.min(i + sitesPerWord, length);
+	    for (; i < end; i++, word >>>= bits)
+		out[i] = alphabet[(int)(word & mask)];
+	}
+    }
+
+    /**
+     * Encode a sequence written by writeWords() as bytes
+     * @param in the buffer holding the words
+     * @param length the sequence length
+     * @param alleleBytes the byte of each allele index
+     * @param out the array to encode into (at least length long)
+     */
+    public static void encodeWords(LongBuffer in, int length, byte[] alleleBytes, byte[] out){
+	int bits = getBitsPerSite(alleleBytes.length);
+	int sitesPerWord = 64 / bits;
+	long mask = (1L << bits) - 1;
+	for (int i = 0; i < length; ){
+	    long word = in.get();
+	    int end = Math.min(i + sitesPerWord, length);
+	    for (; i < end; i++, word >>>= bits)
+		out[i] = alleleBytes[(int)(word & mask)];
+	}
+    }
+
+    /**
+     * Encode the whole sequence as bytes, a word at a time
+     * @param alleleBytes the byte of each allele index
+     * @param out the array to encode into (at least length() long)
+     */
+    public void encode(byte[] alleleBytes, byte[] out){
+	int i = 0;
+	for (long[] chunk : chunks){
+	    for (long word : chunk){
+		int end = Math.min(i + sitesPerWord, length);
+		for (; i < end; i++, word >>>= bits)
+		    out[i] = alleleBytes[(int)(word & mask)];
+	    }
+	}
+    }
+
+    /**
+     * Decode the whole sequence into characters, a word at a time
+     * @param alphabet the character of each allele index
+     * @param out the array to decode into (at least length() long)
+     */
+    public void decode(char[] alphabet, char[] out){
+	int i = 0;
+	for (long[] chunk : chunks){
+	    for (long word : chunk){
+		int end = Math.min(i + sitesPerWord, length);
+		for (; i < end; i++, word >>>= bits)
+		    out[i] = alphabet[(int)(word & mask)];
+	    }
+	}
+    }
+}
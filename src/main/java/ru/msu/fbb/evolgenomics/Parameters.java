@@ -14,11 +14,19 @@ public class Parameters{
     private static int numInstances = 1;
     private static int numThreads = 1;
     private static String treeFile;
+    private static boolean treeCache = false;
+    private static String retainNodes = "all"; //the RETAIN_NODES value
+    private static boolean[] retainedNodes; //by node id; null if all nodes are retained
     private static boolean sharedLandscape = false;
     private static boolean printFitnessInfo = false;
     private static boolean qNormalization = true;
     private static boolean scaleLandscapeChangeToSubstitutionRate = false;
+    private static EventSampling eventSampling = EventSampling.ALLELE_CLASS;
+    private static SimulationEngine simulationEngine = SimulationEngine.DIRECT;
+    private static Traversal traversal = Traversal.BFS;
+    private static OutputMode outputMode = OutputMode.MERGED;
     public static double[][] mutationRateMatrix; // mutation rate matrix (set to all 1's by default)
+    private static boolean mutationRateMatrixUniform = true; //are all the off-diagonal mutation rates equal?
     private static byte[] rootSequence;
 
     public static Model[] models;
@@ -27,8 +35,35 @@ public class Parameters{
     public static Random seedGenerator;
     public static long seed;
     public static boolean seedSet;
+    private static RandomGeneratorType randomGeneratorType = RandomGeneratorType.THREAD_LOCAL;
+    private static SplittableRandomGenerator rootRandomGenerator; //the per-instance generators are split from it
+    private static long rootSeed;
+    private static boolean rootSeedSet;
     public static boolean seedSet(){return seedSet;}
     public static long nextSeed(){return seedGenerator.nextLong();}
+    public static RandomGeneratorType getRandomGeneratorType(){return randomGeneratorType;}
+
+    /**
+     * Split a new generator off the root generator (for the splittable RANDOM_GENERATOR types)
+     * @return the generator for a new simulation instance
+     */
+    public static synchronized SplittableRandomGenerator splitRandomGenerator(){
+	if (rootRandomGenerator == null)
+	    rootRandomGenerator = SplittableRandomGenerator.create(randomGeneratorType, getRootSeed());
+	return rootRandomGenerator.split();
+    }
+
+    /**
+     * @return the seed of the splittable and counter-based generators: SEED if it is set,
+     * otherwise a random value drawn once per run
+     */
+    public static synchronized long getRootSeed(){
+	if (!rootSeedSet){
+	    rootSeed = seedSet ? seed : new java.security.SecureRandom().nextLong();
+	    rootSeedSet = true;
+	}
+	return rootSeed;
+    }
     public static boolean printFitnessInfo(){ return printFitnessInfo;  }
     
     public static int getNumRuns(){return numInstances;}
@@ -36,14 +71,62 @@ public class Parameters{
     public static String  getAlphabet(){return alphabet;};
     public static int  getAlphabetSize(){return alphabet.length();};
     public static String getTreeFile(){return treeFile;}
+    /**
+     * @return true if the compiled tree is cached next to the tree file (see CompiledTreeFile)
+     */
+    public static boolean useTreeCache(){return treeCache;}
+
+    /**
+     * @param node a tree node
+     * @return true if the node's sequence is kept until the output (see resolveRetainedNodes())
+     */
+    public static boolean isRetained(int node){
+	return retainedNodes == null || retainedNodes[node];
+    }
+
+    /**
+     * Find the nodes whose sequences are output, given by RETAIN_NODES as a comma-separated
+     * list of node names and the words "leaves" (all the leaves) and "all" (all the nodes);
+     * the sequences of the other nodes are dropped once their children are simulated
+     * @param tree the tree
+     */
+    public static void resolveRetainedNodes(CompiledTree tree){
+	retainedNodes = new boolean[tree.getNumNodes()];
+	for (String name : retainNodes.split(",")){
+	    if (name.equalsIgnoreCase("all")){
+		retainedNodes = null;
+		return;
+	    }else if (name.equalsIgnoreCase("leaves")){
+		for (int v = 0; v < tree.getNumNodes(); v++)
+		    if (tree.isLeaf(v))
+			retainedNodes[v] = true;
+	    }else{
+		int node = tree.getNodeId(name);
+		if (node < 0)
+		    System.err.println("Warning: node " + name + " of RETAIN_NODES is not in the tree");
+		else
+		    retainedNodes[node] = true;
+	    }
+	}
+    }
     public static byte[] getRootSequenceFromFile(){ return rootSequence;  }
     
     public static boolean isMutationRateMatrixDefined(){return mutationRateMatrix!=null;}
+    /**
+     * @return true if all the mutation rates between different characters are the same
+     * (in particular, if no mutation rate matrix is provided), so that Q and pi are
+     * symmetric under permutations of the alphabet
+     */
+    public static boolean isMutationRateMatrixUniform(){return mutationRateMatrixUniform;}
     
     public static boolean debug(){return debug;}
     public static boolean collectStats(){return collectStats;}
 
     public static boolean getQNormalization(){return qNormalization;}
+    public static EventSampling getEventSampling(){return eventSampling;}
+    public static SimulationEngine getSimulationEngine(){return simulationEngine;}
+    public static Traversal getTraversal(){return traversal;}
+    public static OutputMode getOutputMode(){return outputMode;}
     
 
 
@@ -100,6 +183,7 @@ public class Parameters{
 		    && !name.equals("initialFitnessVectorFromFile")
 		    && !name.equals("rootSequence")
 		    && !name.equals("seedGenerator")
+		    && !name.equals("rootRandomGenerator")
 		    && !name.equals("models")
 		    && !name.equals("changeBranchTimeFitness"))
 		    System.out.println(name + " : " + f.get(null));
@@ -293,6 +377,11 @@ public class Parameters{
 		    for (int j = 0; j < alphabetLength; j++)
 			mutationRateMatrix[i][j] = sc.nextDouble();
 		sc.close();
+		mutationRateMatrixUniform = true;
+		for (int i = 0; i < alphabetLength; i++)
+		    for (int j = 0; j < alphabetLength; j++)
+			if (i != j && mutationRateMatrix[i][j] != mutationRateMatrix[0][1])
+			    mutationRateMatrixUniform = false;
 	    }catch(FileNotFoundException e){
 		System.err.println("Error: cannot open the mutation rate matrix file " + filename);
 		System.exit(-1);
@@ -328,10 +417,19 @@ public class Parameters{
 		seedGenerator.nextLong();//advance to make it more "random"
 				
 	    }
+	    String randomGeneratorStr = globalConfigValues.get("RANDOM_GENERATOR");
+	    if (randomGeneratorStr != null)
+		randomGeneratorType = RandomGeneratorType.stringToEnum(randomGeneratorStr); //else it defaults to THREAD_LOCAL
 	    
 
 	    alphabet = getRequiredParameter(globalConfigValues, "ALPHABET");
 	    treeFile = getRequiredParameter(globalConfigValues, "TREE_FILE");
+	    String treeCacheStr = globalConfigValues.get("TREE_CACHE");
+	    if (treeCacheStr != null)
+		treeCache = Boolean.parseBoolean(treeCacheStr); //else it defaults to false
+	    String retainNodesStr = globalConfigValues.get("RETAIN_NODES");
+	    if (retainNodesStr != null)
+		retainNodes = retainNodesStr; //else it defaults to all
 	    
 	    readRootSequence(globalConfigValues);
 	    readMutationRateMatrix(globalConfigValues);
@@ -364,6 +462,26 @@ public class Parameters{
 		scaleLandscapeChangeToSubstitutionRate = false;
 	    else
 		scaleLandscapeChangeToSubstitutionRate = Boolean.parseBoolean(scaleLandscapeStr);
+
+	    String eventSamplerStr = globalConfigValues.get("EVENT_SAMPLER");
+	    if (eventSamplerStr != null)
+		eventSampling = EventSampling.stringToEnum(eventSamplerStr); //else it defaults to ALLELE_CLASS
+
+	    String simulationEngineStr = globalConfigValues.get("SIMULATION_ENGINE");
+	    if (simulationEngineStr != null)
+		simulationEngine = SimulationEngine.stringToEnum(simulationEngineStr); //else it defaults to DIRECT
+
+	    String traversalStr = globalConfigValues.get("TRAVERSAL");
+	    if (traversalStr != null)
+		traversal = Traversal.stringToEnum(traversalStr); //else it defaults to BFS
+
+	    String outputModeStr = globalConfigValues.get("OUTPUT_MODE");
+	    if (outputModeStr != null)
+		outputMode = OutputMode.stringToEnum(outputModeStr); //else it defaults to MERGED
+
+	    String landscapeCacheSizeStr = globalConfigValues.get("LANDSCAPE_CACHE_SIZE");
+	    if (landscapeCacheSizeStr != null)
+		LandscapeCache.setCapacity(Integer.parseInt(landscapeCacheSizeStr)); //else it defaults to 256
 	    
 	    
 	}catch(MissingParameterException | InvalidParameterCombinationException  | UnrecognizedValueException e){
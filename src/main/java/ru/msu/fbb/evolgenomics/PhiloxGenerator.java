@@ -0,0 +1,122 @@
+/**
+ * The counter-based Philox4x32-10 generator (Salmon et al. 2011, "Parallel random numbers: as easy as 1, 2, 3").
+ * Every 128-bit output block is a keyed bijection of a 128-bit counter, so there is no state
+ * besides the counter: the stream is a pure function of
+ *   key = the global seed,
+ *   counter = (draw index, site block, tree node id, simulation instance id).
+ * setStream() positions the generator at the beginning of the stream of a given node and
+ * site block, so the numbers drawn on a branch do not depend on the order in which
+ * the branches (or the instances) are simulated, nor on the number of threads.
+ *
+ * The draw index takes the low 40 bits of the first two counter words, the site block
+ * the remaining 24, which leaves 2^41 outputs per stream.
+ * The negative node ids are left for streams that belong to no node (see SharedLandscapeChain
+ * and EvolutionaryProcess.statsRandom).
+ */
+public final class PhiloxGenerator extends SplittableRandomGenerator{
+    private static final long M0 = 0xD2511F53L;
+    private static final long M1 = 0xCD9E8D57L;
+    private static final int W0 = 0x9E3779B9;
+    private static final int W1 = 0xBB67AE85;
+    private static final long MASK32 = 0xFFFFFFFFL;
+    private static final int DRAW_HIGH_BITS = 8; //bits of the draw index in the second counter word
+    public static final int MAX_SITE_BLOCK = (1 << (32 - DRAW_HIGH_BITS)) - 1;
+    private static final long MAX_DRAW = (1L << (32 + DRAW_HIGH_BITS)) - 1;
+
+    private int key0, key1;
+    private int instance;  //the simulation instance id (last counter word)
+    private int node;      //the tree node id (third counter word)
+    private int siteBlock; //the site block
+    private long draw;     //the index of the next counter block in the stream
+    private final int[] out = new int[4]; //the current output block
+    private int outPos = 4; //the next unused word of out
+
+    /**
+     * Create a generator positioned at the beginning of the stream of node 0, site block 0
+     * @param seed the key
+     * @param instance the simulation instance id
+     */
+    public PhiloxGenerator(long seed, int instance){
+	this.instance = instance;
+	setSeed(seed);
+    }
+
+    public void setSeed(long seed){
+	key0 = (int)seed;
+	key1 = (int)(seed >>> 32);
+	setStream(0, 0);
+    }
+
+    /**
+     * Move to the beginning of the stream of the given node and site block
+     * @param node the tree node id
+     * @param siteBlock the site block (0 if the sites are not drawn blockwise)
+     */
+    public void setStream(int node, int siteBlock){
+	if (siteBlock < 0 || siteBlock > MAX_SITE_BLOCK)
+	    throw new IllegalArgumentException("site block out of range: " + siteBlock);
+	this.node = node;
+	this.siteBlock = siteBlock;
+	draw = 0;
+	outPos = 4;
+	clearGaussian();
+    }
+
+    public long nextLong(){
+	if (outPos == 4)
+	    nextBlock();
+	long hi = out[outPos++] & MASK32;
+	return (hi << 32) | (out[outPos++] & MASK32);
+    }
+
+    /**
+     * @return a generator with the same key and instance, positioned at the beginning of the stream
+     * of node 0, site block 0, which can be moved between streams without moving this one
+     */
+    public PhiloxGenerator copy(){
+	PhiloxGenerator copy = new PhiloxGenerator(0, instance);
+	copy.key0 = key0;
+	copy.key1 = key1;
+	return copy;
+    }
+
+    /**
+     * A generator for another instance, keyed from this generator's output
+     */
+    public SplittableRandomGenerator split(){
+	return new PhiloxGenerator(nextLong(), instance);
+    }
+
+    /**
+     * Encrypt the next counter into out
+     */
+    private void nextBlock(){
+	if (draw > MAX_DRAW)
+	    throw new IllegalStateException("Philox stream exhausted for node " + node + ", site block " + siteBlock);
+	int c0 = (int)draw;
+	int c1 = (int)(draw >>> 32) | (siteBlock << DRAW_HIGH_BITS);
+	int c2 = node;
+	int c3 = instance;
+	int k0 = key0, k1 = key1;
+	for (int round = 0; round < 10; round++){
+	    if (round > 0){
+		k0 += W0;
+		k1 += W1;
+	    }
+	    long p0 = M0 * (c0 & MASK32);
+	    long p1 = M1 * (c2 & MASK32);
+	    int n0 = (int)(p1 >>> 32) ^ c1 ^ k0;
+	    int n2 = (int)(p0 >>> 32) ^ c3 ^ k1;
+	    c1 = (int)p1;
+	    c3 = (int)p0;
+	    c0 = n0;
+	    c2 = n2;
+	}
+	out[0] = c0;
+	out[1] = c1;
+	out[2] = c2;
+	out[3] = c3;
+	outPos = 0;
+	draw++;
+    }
+}
@@ -23,6 +23,133 @@ public class QfromFitness{
      */
     
     public static double[][] generateQ(double[] F){
+	int n = F.length;
+	double[] flatQ = new double[n * n];
+	generateQ(F, flatQ, new double[n]);
+	double[][] Q = new double[n][n];
+	for (int i = 0; i < n; i++)
+	    System.arraycopy(flatQ, i * n, Q[i], 0, n);
+	return Q;
+    }
+
+    /** 
+     * Generates Q from fitness vector F into a row-major array, Q[i][j] = Q[i*n+j] (unnormalized).
+     * Same as generateQ(F), but with a single exp per allele instead of one per entry:
+     * diff_ji = -diff_ij, and with e_i = exp(F_i - max F), 1 - exp(-diff_ij) = (e_j - e_i)/e_j, so
+     *   Q_ij = m_ij * diff_ij * e_j / (e_j - e_i)  and  Q_ji = m_ji * diff_ij * e_i / (e_j - e_i),
+     * where m is the mutation rate matrix.  Each pair is computed once, and the diagonal
+     * is accumulated along the way.
+     * Nearly neutral pairs (|diff| < 0.1), where e_j - e_i would lose precision, use
+     * diff/(1-exp(-diff)) - (-diff)/(1-exp(diff)) = diff instead, with one expm1 call,
+     * and pairs whose e's underflow use the direct formula.
+     * 
+     * @param F the fitness vector
+     * @param Q the array to fill, of length F.length^2
+     * @param expF the array to fill with exp(F_i - max F) (which is proportional to pi
+     * if there is no mutation rate matrix)
+     * @return max F, the reference point of expF
+     */
+    public static double generateQ(double[] F, double[] Q, double[] expF){
+	int n = F.length;
+	double maxF = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < n; i++)
+	    maxF = Math.max(maxF, F[i]);
+	for (int i = 0; i < n; i++){
+	    expF[i] = Math.exp(F[i] - maxF);
+	    Q[i * n + i] = 0;
+	}
+	for (int i = 0; i < n; i++){
+	    for (int j = i + 1; j < n; j++){
+		setPair(F, Q, expF, i, j);
+		Q[i * n + i] -= Q[i * n + j];
+		Q[j * n + j] -= Q[j * n + i];
+	    }
+	}
+	return maxF;
+    }
+
+    /** 
+     * Update Q from generateQ(F, Q, expF) after a change of the fitness of a single allele, in O(n):
+     * only row and column c are recomputed, and the diagonal entries are corrected for the new column c.
+     * The result is the same as that of generateQ() up to roundoff in the diagonal
+     * 
+     * @param F the fitness vector, differing from the one Q was generated from in F[c] only
+     * @param Q the array filled by generateQ() (or by this method)
+     * @param expF the array filled by generateQ() (or by this method)
+     * @param c the allele whose fitness has changed
+     * @param oldMaxF the value returned by generateQ() (or by this method)
+     * @return max F, the reference point of expF
+     */
+    public static double updateQ(double[] F, double[] Q, double[] expF, int c, double oldMaxF){
+	int n = F.length;
+	double maxF = Double.NEGATIVE_INFINITY;
+	for (int i = 0; i < n; i++)
+	    maxF = Math.max(maxF, F[i]);
+	if (maxF != oldMaxF) //the reference point has moved, so all the e's change
+	    for (int i = 0; i < n; i++)
+		expF[i] = Math.exp(F[i] - maxF);
+	else
+	    expF[c] = Math.exp(F[c] - maxF);
+	int rowC = c * n;
+	Q[rowC + c] = 0;
+	for (int j = 0; j < n; j++){
+	    if (j == c)
+		continue;
+	    int diagJ = j * n + j;
+	    Q[diagJ] += Q[j * n + c]; //take out the old rate
+	    //keep the order of the pair the same as in generateQ
+	    if (c < j)
+		setPair(F, Q, expF, c, j);
+	    else
+		setPair(F, Q, expF, j, c);
+	    Q[rowC + c] -= Q[rowC + j];
+	    Q[diagJ] -= Q[j * n + c];
+	}
+	return maxF;
+    }
+
+    /**
+     * Compute Q_ij and Q_ji (i < j) for the kernel of generateQ() and updateQ() and put them into Q
+     */
+    private static void setPair(double[] F, double[] Q, double[] expF, int i, int j){
+	int n = F.length;
+	double ei = expF[i];
+	double ej = expF[j];
+	double diff = F[j] - F[i];
+	double absDiff = Math.abs(diff);
+	double qij, qji;
+	//get the fixation probability ratios
+	if (absDiff <= 1e-9){
+	    qij = 1;
+	    qji = 1;
+	}else if (absDiff < 0.1){
+	    qij = -diff / Math.expm1(-diff);
+	    qji = qij - diff;
+	}else if (ei >= Double.MIN_NORMAL && ej >= Double.MIN_NORMAL){
+	    double g = diff / (ej - ei);
+	    qij = g * ej;
+	    qji = g * ei;
+	}else{
+	    qij = -diff / Math.expm1(-diff);
+	    qji = diff / Math.expm1(diff);
+	}
+	double[][] mutationRates = Parameters.mutationRateMatrix; //null if all the rates are 1
+	if (mutationRates != null){
+	    qij *= mutationRates[i][j];
+	    qji *= mutationRates[j][i];
+	}
+	Q[i * n + j] = qij;
+	Q[j * n + i] = qji;
+    }
+
+    /** 
+     * Generates Q from fitness vector F with one exp per entry.
+     * The reference for generateQ(F, Q, expF); only used by main()
+     * @param F the fitness vector
+     *
+     * @return matrix Q
+     */
+    private static double[][] generateQDirect(double[] F){
 	int vectSize = F.length;
 	double rowsums[] = new double[vectSize];
 	double [][] Q = new double[vectSize][vectSize];
@@ -74,8 +201,84 @@ public class QfromFitness{
      *
      * @return stationary distribution pi
      */
-
     public static double[]  PiFromQ (double[][] Q) {
+	int n = Q.length;
+	double[] flatQ = new double[n * n];
+	for (int i = 0; i < n; i++)
+	    System.arraycopy(Q[i], 0, flatQ, i * n, n);
+	return PiFromQ(flatQ, new double[n], new double[n][n]);
+    }
+
+    /** 
+     * Computes the stationary probability vector pi from Q without allocating any memory.
+     * We solve the same system as PiFromQInverse, pi*(Q+1) = [1,1,...,1], but as
+     * (Q+1)^T pi^T = [1,1,...,1]^T, by Gaussian elimination with partial pivoting,
+     * which takes n^3/3 multiplications instead of the n^3 of the inverse
+     *
+     * (pi does not change if Q is multiplied by a constant, so Q need not be normalized)
+     * @param Q the matrix Q in row-major order, Q[i][j] = Q[i*n+j]
+     * @param pi the array to store pi in (of length n)
+     * @param work the work space, an n x n matrix (overwritten)
+     *
+     * @return pi
+     */
+    public static double[]  PiFromQ (double[] Q, double[] pi, double[][] work) {
+	if (Parameters.debug()){
+	    System.out.println("PiFromQ");
+	}
+	int n = pi.length;
+	for (int i = 0; i < n; i++){
+	    double[] row = work[i];
+	    for (int j = 0; j < n; j++)
+		row[j] = Q[j * n + i] + 1; //(Q+1)^T
+	    pi[i] = 1;
+	}
+	//forward elimination, applied to the right-hand side (kept in pi) as we go
+	for (int col = 0; col < n; col++){
+	    int pivot = col;
+	    for (int row = col + 1; row < n; row++)
+		if (Math.abs(work[row][col]) > Math.abs(work[pivot][col]))
+		    pivot = row;
+	    if (pivot != col){
+		double[] tempRow = work[pivot];
+		work[pivot] = work[col];
+		work[col] = tempRow;
+		double temp = pi[pivot];
+		pi[pivot] = pi[col];
+		pi[col] = temp;
+	    }
+	    double[] pivotRow = work[col];
+	    if (pivotRow[col] == 0)
+		throw new SingularMatrixException();
+	    for (int row = col + 1; row < n; row++){
+		double[] r = work[row];
+		double factor = r[col] / pivotRow[col];
+		if (factor == 0)
+		    continue;
+		for (int j = col + 1; j < n; j++)
+		    r[j] -= factor * pivotRow[j];
+		pi[row] -= factor * pi[col];
+	    }
+	}
+	//back substitution
+	for (int i = n - 1; i >= 0; i--){
+	    double[] row = work[i];
+	    double sum = pi[i];
+	    for (int j = i + 1; j < n; j++)
+		sum -= row[j] * pi[j];
+	    pi[i] = sum / row[i];
+	}
+	return pi;
+    }
+
+    /** 
+     * Generates the stationary probability vector pi from Q by inverting Q+1.
+     * The reference for PiFromQ, which solves the system instead; only used by main()
+     * @param Q the matrix Q
+     *
+     * @return stationary distribution pi
+     */
+    private static double[]  PiFromQInverse (double[][] Q) {
     	/* we want to solve the following system of equations:
 	   \forall j \Sum_i{pij*q_ij} = 0, or pi * Q = [0,0,..,0] //Yang formula 1.56
 	   \Sum pi = 1;
@@ -85,9 +288,6 @@ public class QfromFitness{
 	   pi*(Q+1) = [1,1,...,1]
 	   where Q+1 is the elementwise sum of Q and a matrix of all ones
 	*/
-	if (Parameters.debug()){
-	    System.out.println("PiFromQ");
-	}
 	RealMatrix Qmat = new Array2DRowRealMatrix(Q);
 	
 	//create a 2D matrix of all ones and a 1D vector of all ones
@@ -159,13 +359,81 @@ public class QfromFitness{
     	return pi;
     }
 
+    /**
+     * Benchmark of the Q and pi kernels: for each alphabet size given on the command line (4 and 20 by default),
+     * time generateQ against generateQDirect and PiFromQ against PiFromQInverse on random landscapes
+     * with a random mutation rate matrix, and report the largest differences between their results
+     */
     public static void main (String[] args){
-	int ALPHABET_SIZE = 2;
-	double [] F = new double[ALPHABET_SIZE];
-	F[0] = 1;
-	for (int i = 1; i < F.length; i++)
-	    F[i] = 1;
-	double[][]Q = generateQ(F);
-	double [] pi = PiFromQ(Q);
+	int[] alphabetSizes = {4, 20};
+	if (args.length > 0){
+	    alphabetSizes = new int[args.length];
+	    for (int i = 0; i < args.length; i++)
+		alphabetSizes[i] = Integer.parseInt(args[i]);
+	}
+	int NUM_LANDSCAPES = 100;
+	int NUM_REPEATS = 200;
+	java.util.Random random = new java.util.Random(1);
+	for (int n : alphabetSizes){
+	    Parameters.mutationRateMatrix = new double[n][n];
+	    for (int i = 0; i < n; i++)
+		for (int j = 0; j < n; j++)
+		    Parameters.mutationRateMatrix[i][j] = 0.5 + random.nextDouble();
+	    double[][] Fs = new double[NUM_LANDSCAPES][n];
+	    double[][][] Qs = new double[NUM_LANDSCAPES][][];
+	    double[][] flatQs = new double[NUM_LANDSCAPES][n * n];
+	    double[] expF = new double[n];
+	    double maxQDiff = 0;
+	    for (int k = 0; k < NUM_LANDSCAPES; k++){
+		for (int i = 0; i < n; i++)
+		    Fs[k][i] = random.nextGaussian();
+		Qs[k] = generateQDirect(Fs[k]);
+		generateQ(Fs[k], flatQs[k], expF);
+		for (int i = 0; i < n; i++)
+		    for (int j = 0; j < n; j++)
+			maxQDiff = Math.max(maxQDiff, Math.abs(flatQs[k][i * n + j] - Qs[k][i][j]) / Math.abs(Qs[k][i][j]));
+	    }
+	    double[] pi = new double[n];
+	    double[][] work = new double[n][n];
+	    double maxPiDiff = 0;
+	    for (int k = 0; k < NUM_LANDSCAPES; k++){
+		double[] expected = PiFromQInverse(Qs[k]);
+		PiFromQ(flatQs[k], pi, work);
+		for (int i = 0; i < n; i++)
+		    maxPiDiff = Math.max(maxPiDiff, Math.abs(pi[i] - expected[i]));
+	    }
+	    double checksum = 0; //keep the JIT from optimizing the calls away
+	    long[] nanos = new long[4];
+	    for (int round = 0; round < 5; round++){ //all but the last round are warm-up
+		long start = System.nanoTime();
+		for (int r = 0; r < NUM_REPEATS; r++)
+		    for (int k = 0; k < NUM_LANDSCAPES; k++){
+			generateQ(Fs[k], flatQs[k], expF);
+			checksum += flatQs[k][1];
+		    }
+		nanos[0] = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int r = 0; r < NUM_REPEATS; r++)
+		    for (int k = 0; k < NUM_LANDSCAPES; k++)
+			checksum += generateQDirect(Fs[k])[0][1];
+		nanos[1] = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int r = 0; r < NUM_REPEATS; r++)
+		    for (double[] Q : flatQs)
+			checksum += PiFromQ(Q, pi, work)[0];
+		nanos[2] = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int r = 0; r < NUM_REPEATS; r++)
+		    for (double[][] Q : Qs)
+			checksum += PiFromQInverse(Q)[0];
+		nanos[3] = System.nanoTime() - start;
+	    }
+	    double calls = NUM_LANDSCAPES * NUM_REPEATS;
+	    System.out.printf("alphabet %d: generateQ %.0f ns/call, generateQDirect %.0f ns/call, max relative difference %.3g%n",
+			      n, nanos[0] / calls, nanos[1] / calls, maxQDiff);
+	    System.out.printf("alphabet %d: PiFromQ %.0f ns/call, PiFromQInverse %.0f ns/call, max |difference| %.3g (checksum %.3f)%n",
+			      n, nanos[2] / calls, nanos[3] / calls, maxPiDiff, checksum);
+	}
+	Parameters.mutationRateMatrix = null;
     }
 }
@@ -0,0 +1,21 @@
+/**
+ * Enum class for the RANDOM_GENERATOR options
+ */
+
+public enum RandomGeneratorType{
+    THREAD_LOCAL, SPLITMIX64, XOSHIRO256, PHILOX;
+
+    /**
+     * Return the enum corresponding to the given string (case-insensitive)
+     * @param value the string to convert to enum
+     * @throws UnrecognizedValueException if the string is not recognized
+     */
+    static RandomGeneratorType stringToEnum(String value){
+	try{
+	    return valueOf(value.toUpperCase());
+	}
+	catch(IllegalArgumentException e){
+	    throw new UnrecognizedValueException("RANDOM_GENERATOR", value);
+	}
+    }
+}
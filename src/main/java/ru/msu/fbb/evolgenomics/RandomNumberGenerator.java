@@ -1,4 +1,3 @@
-import org.apache.commons.math3.distribution.*;
 import org.apache.commons.math3.random.*;
 import java.util.Random;
 import java.math.BigInteger;
@@ -8,30 +7,72 @@ import java.security.SecureRandom;
  */
 public class RandomNumberGenerator{
     private RandomGenerator randomNumberGenerator;
-
-    private ExponentialDistribution exponentialDistribution;
-    private double cache_exp_lambda=Double.NaN; //for caching the distribution object
-    private GammaDistribution gammaDistribution;
-    private double cache_gamma_a = Double.NaN; //for caching the distribution object
-    private double cache_gamma_b = Double.NaN; //for caching the distribution object
-    private LogNormalDistribution logNormalDistribution;
-    private double cache_lognorm_mean = Double.NaN;    //for caching the distribution object
-    private double cache_lognorm_stdev = Double.NaN;
+    private PhiloxGenerator counterBasedGenerator; //randomNumberGenerator if it is counter-based, null otherwise
 
 
     public RandomNumberGenerator(){
-	initRandomNumberGenerator();
+	this(0);
+    }
+
+    /**
+     * @param instance the id of the simulation instance using this generator
+     * (only matters for the counter-based generator)
+     */
+    public RandomNumberGenerator(int instance){
+	initRandomNumberGenerator(instance);
     }
     
-    private  void initRandomNumberGenerator(){
+    private  void initRandomNumberGenerator(int instance){
 	if (randomNumberGenerator == null){
 	    ////very expensive, but hopefully we do it once per process
 	    //	    long seed = (new BigInteger((new SecureRandom()).getSeed(8))).longValue();
 	    //	    randomNumberGenerator = new ISAACRandom(seed);
-	    randomNumberGenerator = new ThreadLocalRandomGenerator();
+	    if (Parameters.getRandomGeneratorType() == RandomGeneratorType.THREAD_LOCAL)
+		randomNumberGenerator = new ThreadLocalRandomGenerator();
+	    else if (Parameters.getRandomGeneratorType() == RandomGeneratorType.PHILOX){
+		counterBasedGenerator = new PhiloxGenerator(Parameters.getRootSeed(), instance);
+		randomNumberGenerator = counterBasedGenerator;
+	    }else //a fast generator with its own stream split off the root one
+		randomNumberGenerator = Parameters.splitRandomGenerator();
 	}
     }
 
+    private RandomNumberGenerator(PhiloxGenerator counterBasedGenerator){
+	this.counterBasedGenerator = counterBasedGenerator;
+	randomNumberGenerator = counterBasedGenerator;
+    }
+
+    /**
+     * @param instance the id of the simulation instance
+     * @return a counter-based generator of the instance, whatever the RANDOM_GENERATOR, for draws that
+     * must not take any from the instance's own generator (such as the COLLECT_STATS diagnostics)
+     */
+    public static RandomNumberGenerator newCounterBased(int instance){
+	return new RandomNumberGenerator(new PhiloxGenerator(Parameters.getRootSeed(), instance));
+    }
+
+    /**
+     * @return for the counter-based generator, another one of the same instance, whose stream can
+     * be set without moving this one's; for the others (which have a single stream), this generator
+     */
+    public RandomNumberGenerator newStreamGenerator(){
+	if (counterBasedGenerator == null)
+	    return this;
+	return new RandomNumberGenerator(counterBasedGenerator.copy());
+    }
+
+    /**
+     * Switch to the stream of the given tree node and site block. Only the counter-based
+     * generator has such streams; for the others this does nothing and the draws
+     * just continue the instance's single stream
+     * @param node the tree node id
+     * @param siteBlock the site block (0 for everything that is not drawn blockwise)
+     */
+    public void setStream(int node, int siteBlock){
+	if (counterBasedGenerator != null)
+	    counterBasedGenerator.setStream(node, siteBlock);
+    }
+
     public  double nextDouble(){
 	return randomNumberGenerator.nextDouble();
     }
@@ -41,23 +82,123 @@ public class RandomNumberGenerator{
 
     /** Methods for sampling from probability distributions **/
 
+    /* All the samplers below take their parameters per call and allocate nothing:
+       the exponential and the normal distributions are sampled with the ziggurat method
+       (Marsaglia and Tsang 2000, in the floating-point form of Doornik 2005),
+       the gamma distribution with the method of Marsaglia and Tsang 2000 */
+
+    private static final int ZIG_EXP_LAYERS = 256;
+    private static final double ZIG_EXP_R = 7.69711747013104972;   //start of the tail
+    private static final double ZIG_EXP_V = 3.949659822581572e-3;  //area of each layer
+    private static final double[] zigExpX = new double[ZIG_EXP_LAYERS+1]; //layer boundaries
+    private static final double[] zigExpRatio = new double[ZIG_EXP_LAYERS]; //zigExpX[i+1]/zigExpX[i]
+
+    private static final int ZIG_NORM_LAYERS = 128;
+    private static final double ZIG_NORM_R = 3.442619855899;
+    private static final double ZIG_NORM_V = 9.91256303526217e-3;
+    private static final double[] zigNormX = new double[ZIG_NORM_LAYERS+1];
+    private static final double[] zigNormRatio = new double[ZIG_NORM_LAYERS];
+
+    static{
+	double f = Math.exp(-ZIG_EXP_R);
+	zigExpX[0] = ZIG_EXP_V / f; //the bottom layer includes the tail
+	zigExpX[1] = ZIG_EXP_R;
+	zigExpX[ZIG_EXP_LAYERS] = 0;
+	for (int i = 2; i < ZIG_EXP_LAYERS; i++){
+	    zigExpX[i] = -Math.log(ZIG_EXP_V / zigExpX[i-1] + f);
+	    f = Math.exp(-zigExpX[i]);
+	}
+	for (int i = 0; i < ZIG_EXP_LAYERS; i++)
+	    zigExpRatio[i] = zigExpX[i+1] / zigExpX[i];
+
+	f = Math.exp(-0.5 * ZIG_NORM_R * ZIG_NORM_R);
+	zigNormX[0] = ZIG_NORM_V / f;
+	zigNormX[1] = ZIG_NORM_R;
+	zigNormX[ZIG_NORM_LAYERS] = 0;
+	for (int i = 2; i < ZIG_NORM_LAYERS; i++){
+	    zigNormX[i] = Math.sqrt(-2 * Math.log(ZIG_NORM_V / zigNormX[i-1] + f));
+	    f = Math.exp(-0.5 * zigNormX[i] * zigNormX[i]);
+	}
+	for (int i = 0; i < ZIG_NORM_LAYERS; i++)
+	    zigNormRatio[i] = zigNormX[i+1] / zigNormX[i];
+    }
+
+    /**
+     * Sample from the exponential distribution with rate 1 (ziggurat method)
+     * @return the sampled value
+     */
+    public double sampleStandardExponential(){
+	while (true){
+	    double u = nextDouble();
+	    int i = nextInt(ZIG_EXP_LAYERS);
+	    if (u < zigExpRatio[i]) //inside the rectangle of the layer
+		return u * zigExpX[i];
+	    if (i == 0) //the tail: by memorylessness, it's just a shifted exponential
+		return ZIG_EXP_R - Math.log(1.0 - nextDouble());
+	    double x = u * zigExpX[i];
+	    //in the wedge: accept if under the density
+	    double f0 = Math.exp(-(zigExpX[i] - x));
+	    double f1 = Math.exp(-(zigExpX[i+1] - x));
+	    if (f1 + nextDouble() * (f0 - f1) < 1.0)
+		return x;
+	}
+    }
+
+    /**
+     * Sample from the standard normal distribution (ziggurat method)
+     * @return the sampled value
+     */
+    public double sampleStandardNormal(){
+	while (true){
+	    double u = 2 * nextDouble() - 1;
+	    int i = nextInt(ZIG_NORM_LAYERS);
+	    if (Math.abs(u) < zigNormRatio[i]) //inside the rectangle of the layer
+		return u * zigNormX[i];
+	    if (i == 0){ //the tail (Marsaglia 1964)
+		double x, y;
+		do{
+		    x = Math.log(1.0 - nextDouble()) / ZIG_NORM_R;
+		    y = Math.log(1.0 - nextDouble());
+		}while (-2 * y < x * x);
+		return (u < 0) ? x - ZIG_NORM_R : ZIG_NORM_R - x;
+	    }
+	    double x = u * zigNormX[i];
+	    //in the wedge: accept if under the density
+	    double f0 = Math.exp(-0.5 * (zigNormX[i] * zigNormX[i] - x * x));
+	    double f1 = Math.exp(-0.5 * (zigNormX[i+1] * zigNormX[i+1] - x * x));
+	    if (f1 + nextDouble() * (f0 - f1) < 1.0)
+		return x;
+	}
+    }
+
     /**
-     * Sample from the gamma distribution with parameters alpha = beta;
-     * @param a alpha=beta
+     * Sample from the gamma distribution with shape a and rate b (Marsaglia and Tsang 2000)
+     * @param a shape (alpha)
+     * @param b rate (beta)
      * @return the sampled value
      */
     public  double sampleGamma (double a, double b)  {
-	if (gammaDistribution == null || cache_gamma_a != a || cache_gamma_b != b){
-
-	    //the math3 library uses the shape-scale parametrization of gamma
-	    gammaDistribution = new GammaDistribution(randomNumberGenerator, a, 1.0/b, GammaDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
-	    cache_gamma_a = a;
-	    cache_gamma_b = b;
-	    // if (Model.debug())
-	    // 	System.out.println("new GammaDistribution object created with param " + a);
+	if (a < 1){
+	    //boost: if X ~ Gamma(a+1) and U ~ Uniform(0,1), then X*U^(1/a) ~ Gamma(a)
+	    double u = 1.0 - nextDouble(); //in (0, 1]
+	    return sampleGamma(a + 1, b) * Math.pow(u, 1.0 / a);
+	}
+	double d = a - 1.0 / 3.0;
+	double c = 1.0 / Math.sqrt(9 * d);
+	while (true){
+	    double x, v;
+	    do{
+		x = sampleStandardNormal();
+		v = 1 + c * x;
+	    }while (v <= 0);
+	    v = v * v * v;
+	    double u = nextDouble();
+	    double x2 = x * x;
+	    if (u < 1 - 0.0331 * x2 * x2) //squeeze
+		return d * v / b;
+	    if (Math.log(u) < 0.5 * x2 + d * (1 - v + Math.log(v)))
+		return d * v / b;
 	}
-	
-	return gammaDistribution.sample();
     }
     
     /**
@@ -66,15 +207,7 @@ public class RandomNumberGenerator{
      * @return the sampled value
      */
     public  double sampleExponential(double lambda){
-	if (exponentialDistribution == null || lambda != cache_exp_lambda){
-	    exponentialDistribution =
-		//		new ExponentialDistribution(new ThreadLocalRandomGenerator(), 1.0/lambda,  ExponentialDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
-		new ExponentialDistribution(randomNumberGenerator, 1.0/lambda,  ExponentialDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
-	    cache_exp_lambda = lambda;
- 	    // if (Model.debug())
-	    // 	System.out.println("new ExponentialDistribution object created wth lambda " + lambda);
-	}
-	return exponentialDistribution.sample();
+	return sampleStandardExponential() / lambda;
     }
 
     /**
@@ -84,19 +217,71 @@ public class RandomNumberGenerator{
      * @return the sampled value
      */    
     public  double sampleLogNormal(double norm_mean, double norm_stdev){
-	if (logNormalDistribution == null &&
-	    (norm_mean != cache_lognorm_mean || norm_stdev != cache_lognorm_stdev )){
-		logNormalDistribution =
-		    //		    new LogNormalDistribution(new ThreadLocalRandomGenerator(), norm_mean, norm_stdev,  LogNormalDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
-		    new LogNormalDistribution(randomNumberGenerator, norm_mean, norm_stdev,  LogNormalDistribution.DEFAULT_INVERSE_ABSOLUTE_ACCURACY);
-		cache_lognorm_mean = norm_mean;
-		cache_lognorm_stdev = norm_stdev;
-		// if (Model.debug())
-		//     System.out.println("new LogNormalDistribution object created with params " + norm_mean + " and " + norm_stdev);
+	return Math.exp(norm_mean + norm_stdev * sampleStandardNormal());
+    }
+
+    /**
+     * Fill the array with independent samples from the gamma distribution
+     * @param arr the array to fill
+     * @param a shape (alpha)
+     * @param b rate (beta)
+     */
+    public void fillGamma(double[] arr, double a, double b){
+	for (int i = 0; i < arr.length; i++)
+	    arr[i] = sampleGamma(a, b);
+    }
+
+    /**
+     * Fill the array with independent samples from the lognormal distribution
+     * @param arr the array to fill
+     * @param norm_mean the mean of the normal distribution
+     * @param norm_stdev the standard deviation of the normal distribution
+     */
+    public void fillLogNormal(double[] arr, double norm_mean, double norm_stdev){
+	for (int i = 0; i < arr.length; i++)
+	    arr[i] = Math.exp(norm_mean + norm_stdev * sampleStandardNormal());
+    }
+
+    /**
+     * Sample from the Poisson distribution with the given mean.
+     * Uses multiplication of uniforms for small means and Hormann's transformed rejection
+     * with squeeze (PTRS) for large ones, so the cost is O(1) for any mean and nothing is allocated
+     * @param mean the mean of the distribution
+     * @return the sampled value
+     */
+    public long samplePoisson(double mean){
+	if (mean <= 0)
+	    return 0;
+	if (mean < 10){
+	    double limit = Math.exp(-mean);
+	    double p = nextDouble();
+	    long k = 0;
+	    while (p > limit){
+		k++;
+		p *= nextDouble();
+	    }
+	    return k;
+	}
+	double logMean = Math.log(mean);
+	double b = 0.931 + 2.53 * Math.sqrt(mean);
+	double a = -0.059 + 0.02483 * b;
+	double invAlpha = 1.1239 + 1.1328 / (b - 3.4);
+	double vr = 0.9277 - 3.6224 / (b - 2);
+	while (true){
+	    double u = nextDouble() - 0.5;
+	    double v = nextDouble();
+	    double us = 0.5 - Math.abs(u);
+	    double k = Math.floor((2 * a / us + b) * u + mean + 0.43);
+	    if (us >= 0.07 && v <= vr)
+		return (long)k;
+	    if (k < 0 || (us < 0.013 && v > us))
+		continue;
+	    if (Math.log(v) + Math.log(invAlpha) - Math.log(a / (us * us) + b)
+		<= -mean + k * logMean - org.apache.commons.math3.special.Gamma.logGamma(k + 1))
+		return (long)k;
 	}
-	return logNormalDistribution.sample();
     }
-    
+
     /**
      * Sample from the discrete distribution 
      * @param arr array defining the distribution of (arr[i] is the probabiity of element i)
@@ -141,13 +326,31 @@ public class RandomNumberGenerator{
      * @param arr array to permute
      */
     public  void shuffleArray (double[] arr){
+	shuffleArray(arr, null);
+    }
+
+    /**
+     * Randomly permute the array in place (array is modified), recording the permutation
+     * @param arr array to permute
+     * @param permutation array of the same length to store the permutation in (or null):
+     * the new arr[k] is the old arr[permutation[k]]
+     */
+    public  void shuffleArray (double[] arr, int[] permutation){
 	int N = arr.length;
+	if (permutation != null)
+	    for (int i = 0; i < N; i++)
+		permutation[i] = i;
 	for (int i = 0;  i < N; i++){
 	    int r = nextInt(N-i);
 	    //swap arr[i] with arr[i + r]
 	    double temp = arr[i];
 	    arr[i] = arr[i + r];
 	    arr[i + r ] = temp;
+	    if (permutation != null){
+		int tempIndex = permutation[i];
+		permutation[i] = permutation[i + r];
+		permutation[i + r] = tempIndex;
+	    }
 	}
     }
 
@@ -0,0 +1,107 @@
+/**
+ * A complete binary sum tree over a vector of (unnormalized) event rates.
+ * Every leaf holds the rate of one event, and every internal node holds the sum of its
+ * two children, so the root holds the total rate.
+ * Changing one rate and drawing an event proportionally to the rates both take O(log n).
+ *
+ * Internal nodes are always recomputed as the sum of their children (never adjusted by
+ * adding differences), so the sums do not drift no matter how many updates are made.
+ */
+public class RateSumTree{
+    private double[] tree; //tree[1] is the root, leaves are tree[size..size+n-1]
+    private int size;      //number of leaves in the complete tree (power of 2, >= n)
+    private int n;         //number of events
+
+    /**
+     * Create a sum tree for n events with all rates set to 0
+     * @param n the number of events
+     */
+    public RateSumTree(int n){
+	this.n = n;
+	size = 1;
+	while (size < n)
+	    size <<= 1;
+	tree = new double[2*size];
+    }
+
+    /**
+     * Create a copy of another sum tree
+     * @param orig the tree to copy
+     */
+    public RateSumTree(RateSumTree orig){
+	n = orig.n;
+	size = orig.size;
+	tree = java.util.Arrays.copyOf(orig.tree, orig.tree.length);
+    }
+
+    /**
+     * @return the number of events
+     */
+    public int getNumEvents(){return n;}
+
+    /**
+     * @return the sum of all rates
+     */
+    public double getSum(){return tree[1];}
+
+    /**
+     * Get the rate of one event
+     * @param i the event index
+     * @return the rate of event i
+     */
+    public double get(int i){return tree[size+i];}
+
+    /**
+     * Set the rate of one event without updating the sums;
+     * call rebuild() after all the rates are set
+     * @param i the event index
+     * @param rate the new rate
+     */
+    public void setLeaf(int i, double rate){
+	tree[size+i] = rate;
+    }
+
+    /**
+     * Recompute all the internal sums from the leaves in O(n)
+     */
+    public void rebuild(){
+	for (int node = size-1; node >= 1; node--)
+	    tree[node] = tree[2*node] + tree[2*node+1];
+    }
+
+    /**
+     * Set the rate of one event and update the sums on the path to the root in O(log n)
+     * @param i the event index
+     * @param rate the new rate
+     */
+    public void update(int i, double rate){
+	int node = size + i;
+	tree[node] = rate;
+	node >>= 1;
+	while (node >= 1){
+	    tree[node] = tree[2*node] + tree[2*node+1];
+	    node >>= 1;
+	}
+    }
+
+    /**
+     * Draw an event with probability proportional to its rate
+     * @param random the RandomNumberGenerator object providing the RNG to be used
+     * @return the index of the drawn event
+     */
+    public int sample(RandomNumberGenerator random){
+	double r = random.nextDouble() * tree[1];
+	int node = 1;
+	while (node < size){
+	    int left = 2*node;
+	    //the second condition guards against roundoff taking us into an empty subtree
+	    if (r < tree[left] || tree[left+1] <= 0){
+		node = left;
+	    }else{
+		r -= tree[left];
+		node = left+1;
+	    }
+	}
+	return node - size;
+    }
+}
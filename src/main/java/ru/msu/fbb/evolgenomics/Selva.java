@@ -15,15 +15,19 @@ public class Selva {
 	try{
 	    Parameters.init(args[0]);
 	    double startTime = (double)System.currentTimeMillis();
-	    //read and build the phylogenetic tree
-	    BasicTree tree = new BasicTree(Parameters.getTreeFile());	    
+	    //read the phylogenetic tree straight into the array form the simulation uses
+	    //(or load it in this form from the tree cache)
+	    CompiledTree tree = Parameters.useTreeCache() ? CompiledTreeFile.read(Parameters.getTreeFile())
+		: NewickReader.read(Parameters.getTreeFile());
 	    //print the values of all model parameters
 
 	    System.out.println("tree height : " + tree.getTreeHeight());
 	    Model[] models = Parameters.models;
 	    for (Model model: models){
 		model.computeAndSetLandscapeChangeParameters(tree.getTreeHeight());
+		model.resolveChangeBranches(tree);
 	    }
+	    Parameters.resolveRetainedNodes(tree);
 
 	    Parameters.printParams();	    
 	    
@@ -34,6 +38,7 @@ public class Selva {
 	    /* start the simulation! */
 	    
 	    EvolutionaryProcess[] processes = new EvolutionaryProcess[numLandscapes];
+	    Future<?>[] results = new Future<?>[numLandscapes]; //to pass on the exceptions of the instances
 	    int numThreads = Parameters.getNumThreads();
 	    // int batchSize = numLandscapes / numThreads;
 	    // //is this correct?
@@ -42,15 +47,39 @@ public class Selva {
 	    
 	    
 	    ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+	    //with streaming output, the instances are spilled as they finish and not kept here
+	    StreamingOutput streamingOutput = (Parameters.getOutputMode() == OutputMode.STREAMING) ?
+		new StreamingOutput(tree, numLandscapes, numThreads) : null;
+	    //with mapped output, the instances write their sequences straight into the output file
+	    OutputArena outputArena = null;
+	    if (Parameters.getOutputMode() == OutputMode.MAPPED){
+		if (OutputArena.canMap()){
+		    int[] seqLength = new int[numLandscapes];
+		    for (int i = 0; i < numLandscapes; i++)
+			seqLength[i] = (Parameters.getIsVariableLandscapes() ? models[i] : models[0]).getSequenceLength();
+		    outputArena = new OutputArena(tree, seqLength);
+		}else
+		    System.err.println("Warning: the ALPHABET characters don't take one byte each, so the output is merged rather than mapped");
+	    }
 	    // this is where the paths for one setup, many instances diverges from variable landscapes
-	
+
 	    for (int i = 0; i < numLandscapes; i++){
-		if (!Parameters.getIsVariableLandscapes()){	
-		    processes[i] = new EvolutionaryProcess(tree, models[0], i);
+		//the instances are still created in the order of their ids (see EvolutionaryProcess())
+		if (streamingOutput != null)
+		    streamingOutput.acquireSlot();
+		EvolutionaryProcess process;
+		if (!Parameters.getIsVariableLandscapes()){
+		    process = new EvolutionaryProcess(tree, models[0], i);
 		}else{
-		    processes[i] = new EvolutionaryProcess(tree, models[i], i);
+		    process = new EvolutionaryProcess(tree, models[i], i);
+		}
+		if (streamingOutput != null)
+		    executorService.execute(streamingOutput.streamed(process));
+		else{
+		    process.outputArena = outputArena;
+		    processes[i] = process;
+		    results[i] = executorService.submit(process);
 		}
-		executorService.execute(processes[i]);
 	    }
 	    
 	    
@@ -65,58 +94,24 @@ public class Selva {
 	    if (Parameters.debug()){
 		System.err.printf("simulations took %.5f seconds\n", (endTime-startTime)/1000.0);
 		System.out.printf("simulations took %.5f seconds\n", (endTime-startTime)/1000.0);
+		System.err.println("landscape cache: " + LandscapeCache.getNumHits() + " hits, " + LandscapeCache.getNumMisses() + " misses");
 	    }
-	    //merge sequence and changetime data from different runs
-	    PrintWriter seqWriter = new PrintWriter("allnodes.merged.fasta");
-            PrintWriter changeTimeWriter;
-            PrintWriter fitnessWriter;
-            if (Parameters.printFitnessInfo()){
-                changeTimeWriter = new PrintWriter("changetimes.merged.fasta");
-                fitnessWriter = new PrintWriter("fitnesses.merged.fasta");
-            }else{  
-                changeTimeWriter = null;
-                fitnessWriter = null;
-
-            }
-            String alphabet = Parameters.getAlphabet();
-	    boolean first = true;
-	    for (BasicNode node: tree.getNodes()){//		byte[] mergedArr = entry.getValue();
-		String nodeName = node.getName();
-		seqWriter.println(">"+nodeName);
-		if (Parameters.printFitnessInfo()){
-                    changeTimeWriter.println(">"+nodeName); 
-                    fitnessWriter.println(">"+nodeName);
-		}		
-		int k = 0;
-		for (int i = 0; i < numLandscapes; i++){
-		    //merge sequence info
-		    byte[] arr = processes[i].node2seq.get(node);
-		    //		    System.out.println("arr: " + arr);
-		    for (int j = 0;  j < arr.length; j++){
-		     	seqWriter.append(alphabet.charAt(arr[j]));
-		    }
-		    //merge fitness change info, but ony if the user asks for it
-                    if (Parameters.printFitnessInfo()){
-                        changeTimeWriter.append(processes[i].changeTracker.getChangeTimes(nodeName) + "; ");
-                        fitnessWriter.append(processes[i].changeTracker.getFitnesses(nodeName) + "; ");
-                    }
-		    if (first){
-			if (Parameters.collectStats())
-			    System.err.println("landscape " + i + ": " + processes[i].changeTracker.count + " changes");
-			first =false;
-		    }
-                }
-		seqWriter.println();
-		if (Parameters.printFitnessInfo()){
-                    fitnessWriter.println();
-                    changeTimeWriter.println();
-                }
+	    if (streamingOutput != null)
+		streamingOutput.finish();
+	    else{
+		for (Future<?> result : results)
+		    result.get(); //throws if the instance failed
+		if (outputArena != null){
+		    outputArena.close();
+		    if (Parameters.printFitnessInfo())
+			writeMergedOutput(tree, processes, false); //the landscape info is still merged
+		}else
+		    writeMergedOutput(tree, processes, true);
 	    }
-	    seqWriter.close();
-	    if (Parameters.printFitnessInfo()){  
-                fitnessWriter.close();
-                changeTimeWriter.close();
-            }
+	    if (Parameters.collectStats())
+		System.err.println("landscapes: Q computed " + LandscapeCore.getNumQComputed() + " times; "
+				   + LandscapeCore.getNumTablesBuilt() + " of " + LandscapeCore.getNumTablesInvalidated()
+				   + " sampling tables built, the rest skipped");
             endTime = (double) System.currentTimeMillis();
 	    //	    System.err.printf("entire computation took %.5f seconds\n", (endTime-startTime)/1000.0);
 	    System.out.printf("entire computation took %.5f seconds\n", (endTime-startTime)/1000.0);
@@ -126,4 +121,61 @@ public class Selva {
 	    System.exit(-1);
 	}
     }
+
+    /**
+     * Merge the sequence and changetime data from the different runs, once all of them are done
+     * @param tree the tree
+     * @param processes the simulation instances
+     * @param withSequences whether to write the sequences (not if they have been written as they were computed)
+     */
+    private static void writeMergedOutput(CompiledTree tree, EvolutionaryProcess[] processes, boolean withSequences) throws IOException{
+	int numLandscapes = processes.length;
+	//each file has its own writer thread
+	FastaWriter seqWriter = withSequences ? new FastaWriter("allnodes.merged.fasta") : null;
+	FastaWriter changeTimeWriter = null;
+	FastaWriter fitnessWriter = null;
+	if (Parameters.printFitnessInfo()){
+	    changeTimeWriter = new FastaWriter("changetimes.merged.fasta");
+	    fitnessWriter = new FastaWriter("fitnesses.merged.fasta");
+	}
+	boolean first = true;
+	for (int node: tree.getOutputOrder()){
+	    if (!Parameters.isRetained(node))
+		continue; //its sequences were dropped during the simulation
+	    String nodeName = tree.getName(node);
+	    if (withSequences)
+		seqWriter.writeHeader(nodeName);
+	    if (Parameters.printFitnessInfo()){
+		changeTimeWriter.writeHeader(nodeName);
+		fitnessWriter.writeHeader(nodeName);
+	    }
+	    for (int i = 0; i < numLandscapes; i++){
+		//merge sequence info
+		if (withSequences)
+		    seqWriter.writeSequence(processes[i].node2seq[node]);
+		//merge fitness change info, but ony if the user asks for it
+		if (Parameters.printFitnessInfo()){
+		    changeTimeWriter.write(processes[i].changeTracker.getChangeTimes(node) + "; ");
+		    fitnessWriter.write(processes[i].changeTracker.getFitnesses(node) + "; ");
+		}
+		if (first){
+		    if (Parameters.collectStats())
+			System.err.println("landscape " + i + ": " + processes[i].changeTracker.count + " changes");
+		    first =false;
+		}
+	    }
+	    if (withSequences)
+		seqWriter.newLine();
+	    if (Parameters.printFitnessInfo()){
+		fitnessWriter.newLine();
+		changeTimeWriter.newLine();
+	    }
+	}
+	if (withSequences)
+	    seqWriter.close();
+	if (Parameters.printFitnessInfo()){
+	    fitnessWriter.close();
+	    changeTimeWriter.close();
+	}
+    }
  }
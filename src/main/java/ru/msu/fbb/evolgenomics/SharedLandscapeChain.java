@@ -0,0 +1,126 @@
+/**
+ * The sequence of landscapes of a simulation instance when landscapes are shared between
+ * parallel branches (SHARED_LANDSCAPE true).  The landscape after the k'th change is epoch k;
+ * a branch whose landscape is at epoch k moves to epoch k+1 at its next change, generating
+ * it if no branch has got there before.
+ *
+ * Epochs are kept in a ring buffer indexed by epoch number, each with the number of pending
+ * BFS entries whose inherited landscape is at that epoch.  Since landscapes only ever move
+ * forward, an epoch older than the oldest referenced one can't be reached again, so it is
+ * dropped; memory is bounded by the span of epochs between the pending branches rather than
+ * by the number of changes in the whole run.
+ *
+ * With the counter-based generator, each epoch is drawn from a stream of its own (on the
+ * negative node ids, see PhiloxGenerator), so the landscapes don't depend on which branch
+ * gets to an epoch first, and the BFS and DFS traversals give the same result.  (Except
+ * for the allele-dependent and user-set rules, where the next landscape depends on the
+ * allele and the branch of the one that generates it.)
+ */
+public class SharedLandscapeChain{
+    private Landscape[] landscapes = new Landscape[16];
+    private int[] refCount = new int[16];
+    private int head = 0; //slot of the oldest epoch kept
+    private int size = 0; //number of epochs kept
+    private long firstEpoch = 0; //epoch number of the oldest epoch kept
+    private long numReleased = 0;  //number of epochs dropped so far
+    private final RandomNumberGenerator epochRandom; //generates the epochs (see the class comment)
+
+    /**
+     * Start the chain at the given landscape, which becomes epoch 0
+     * @param root the starting landscape
+     */
+    public SharedLandscapeChain(Landscape root){
+	epochRandom = root.random.newStreamGenerator();
+	append(root);
+    }
+
+    /**
+     * Get the landscape following the given one, generating it if needed
+     * @param ls the current landscape (must belong to this chain)
+     * @param character the current allele (index).  Relevant for allele-specific landscape change
+     * @param newFitness new fitness vector specified by user; null if not specified
+     * @return the landscape of the next epoch
+     */
+    public Landscape next(Landscape ls, byte character, double[] newFitness){
+	long epoch = ls.getEpoch() + 1;
+	if (epoch < firstEpoch + size){
+	    if (Parameters.debug())
+		System.out.println("next shared landscape generated before");
+	    return landscapes[slot(epoch)];
+	}
+	if (Parameters.debug())
+	    System.out.println("generate shared landscape on demand");
+	Landscape next = new Landscape(ls); //at first, next landscape is identical to old one
+	long blocks = PhiloxGenerator.MAX_SITE_BLOCK + 1; //epoch e is site block e % blocks of node -1 - e / blocks
+	epochRandom.setStream(-1 - (int)(epoch / blocks), (int)(epoch % blocks));
+	next.changeQ(character, newFitness, epochRandom); //then immediatley change it
+	append(next);
+	return next;
+    }
+
+    /**
+     * Register a pending reference to the epoch of the given landscape
+     * @param ls a landscape of this chain
+     */
+    public void retain(Landscape ls){
+	refCount[slot(ls.getEpoch())]++;
+    }
+
+    /**
+     * Remove a reference registered by retain(), dropping the epochs that can no longer be reached
+     * @param ls a landscape of this chain
+     */
+    public void release(Landscape ls){
+	int s = slot(ls.getEpoch());
+	if (refCount[s] <= 0)
+	    throw new IllegalStateException("landscape epoch " + ls.getEpoch() + " released more times than retained");
+	refCount[s]--;
+	//keep the newest epoch in any case, so that the chain is never empty
+	while (size > 1 && refCount[head] == 0){
+	    landscapes[head] = null;
+	    head = (head + 1) % landscapes.length;
+	    size--;
+	    firstEpoch++;
+	    numReleased++;
+	}
+    }
+
+    /**
+     * Get the number of epochs currently kept
+     */
+    public int getNumKept(){
+	return size;
+    }
+
+    /**
+     * Get the number of epochs dropped so far
+     */
+    public long getNumReleased(){
+	return numReleased;
+    }
+
+    private int slot(long epoch){
+	if (epoch < firstEpoch || epoch >= firstEpoch + size)
+	    throw new IllegalStateException("landscape epoch " + epoch + " is no longer kept (kept: " + firstEpoch + " to " + (firstEpoch + size - 1) + ")");
+	return (int)((head + (epoch - firstEpoch)) % landscapes.length);
+    }
+
+    private void append(Landscape ls){
+	if (size == landscapes.length){
+	    Landscape[] newLandscapes = new Landscape[2*size];
+	    int[] newRefCount = new int[2*size];
+	    for (int i = 0; i < size; i++){
+		newLandscapes[i] = landscapes[(head + i) % size];
+		newRefCount[i] = refCount[(head + i) % size];
+	    }
+	    landscapes = newLandscapes;
+	    refCount = newRefCount;
+	    head = 0;
+	}
+	int s = (head + size) % landscapes.length;
+	landscapes[s] = ls;
+	refCount[s] = 0;
+	ls.setChain(this, firstEpoch + size);
+	size++;
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Enum class for the SIMULATION_ENGINE options:
+ * DIRECT draws every event from the current rates of all positions,
+ * UNIFORMIZATION draws candidate events at a constant dominating rate and accepts
+ * or rejects them according to the current landscape
+ */
+
+public enum SimulationEngine{
+    DIRECT, UNIFORMIZATION;
+
+    /**
+     * Return the enum corresponding to the given string (case-insensitive)
+     * @param value the string to convert to enum
+     * @throws UnrecognizedValueException if the string is not recognized
+     */
+    static SimulationEngine stringToEnum(String value){
+	try{
+	    return valueOf(value.toUpperCase());
+	}
+	catch(IllegalArgumentException e){
+	    throw new UnrecognizedValueException("SIMULATION_ENGINE", value);
+	}
+    }
+}
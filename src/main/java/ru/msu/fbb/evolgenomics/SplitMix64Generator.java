@@ -0,0 +1,52 @@
+/**
+ * The SplitMix64 generator (Steele, Lea and Flood 2014), the algorithm of java.util.SplittableRandom:
+ * a Weyl sequence with an odd increment (gamma) passed through a 64-bit mixing function.
+ * Split streams get their own seed and gamma.
+ */
+public final class SplitMix64Generator extends SplittableRandomGenerator{
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private long seed;
+    private long gamma;
+
+    /**
+     * @param seed the seed
+     */
+    public SplitMix64Generator(long seed){
+	setSeed(seed);
+    }
+
+    private SplitMix64Generator(long seed, long gamma){
+	this.seed = seed;
+	this.gamma = gamma;
+    }
+
+    public void setSeed(long seed){
+	this.seed = mix64(seed);
+	this.gamma = GOLDEN_GAMMA;
+    }
+
+    public long nextLong(){
+	seed += gamma;
+	return mix64(seed);
+    }
+
+    public SplittableRandomGenerator split(){
+	return new SplitMix64Generator(nextLong(), mixGamma(nextSeed()));
+    }
+
+    private long nextSeed(){
+	return seed += gamma;
+    }
+
+    /**
+     * Turn a seed into a valid increment: odd, with enough bit transitions
+     * (as in java.util.SplittableRandom)
+     */
+    private static long mixGamma(long z){
+	z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+	z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+	z = (z ^ (z >>> 33)) | 1L;
+	int n = Long.bitCount(z ^ (z >>> 1));
+	return (n < 24) ? z ^ 0xaaaaaaaaaaaaaaaaL : z;
+    }
+}
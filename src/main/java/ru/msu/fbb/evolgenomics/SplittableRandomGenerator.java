@@ -0,0 +1,135 @@
+import org.apache.commons.math3.random.RandomGenerator;
+
+/**
+ * Base class for the fast 64-bit PRNGs that can be selected with RANDOM_GENERATOR.
+ * Every output is derived from nextLong(), and independent streams for the simulation
+ * instances are obtained with split() rather than by reseeding.
+ * Unlike ThreadLocalRandomGenerator, these generators are not synchronized
+ * and do not go through AbstractRandomGenerator, so each instance must be used by one thread only.
+ */
+public abstract class SplittableRandomGenerator implements RandomGenerator{
+    private static final double DOUBLE_UNIT = 0x1.0p-53;
+    private double nextGaussian = Double.NaN; //the second value generated by the polar method
+
+    /**
+     * @return the next 64 random bits
+     */
+    public abstract long nextLong();
+
+    /**
+     * Create a new generator whose stream is (for all practical purposes) independent of this one's.
+     * This generator's state is advanced
+     * @return the new generator
+     */
+    public abstract SplittableRandomGenerator split();
+
+    /**
+     * Reset the state from the given 64-bit seed
+     * @param seed the seed
+     */
+    public abstract void setSeed(long seed);
+
+    public final double nextDouble(){
+	return (nextLong() >>> 11) * DOUBLE_UNIT;
+    }
+
+    public final int nextInt(int n){
+	if (n <= 0)
+	    throw new IllegalArgumentException("bound must be positive: " + n);
+	//as in java.util.Random, but on the high 31 bits of a 64-bit output
+	int r = (int)(nextLong() >>> 33);
+	int m = n - 1;
+	if ((n & m) == 0) //n is a power of 2
+	    return (int)((n * (long)r) >> 31);
+	for (int u = r; u - (r = u % n) + m < 0; u = (int)(nextLong() >>> 33))
+	    ;
+	return r;
+    }
+
+    public final int nextInt(){
+	return (int)(nextLong() >>> 32);
+    }
+
+    public final boolean nextBoolean(){
+	return nextLong() < 0;
+    }
+
+    public final float nextFloat(){
+	return (nextLong() >>> 40) * 0x1.0p-24f;
+    }
+
+    public final void nextBytes(byte[] bytes){
+	int i = 0;
+	while (i < bytes.length){
+	    long r = nextLong();
+	    for (int k = 0; k < 8 && i < bytes.length; k++, r >>>= 8)
+		bytes[i++] = (byte)r;
+	}
+    }
+
+    public final double nextGaussian(){
+	if (!Double.isNaN(nextGaussian)){
+	    double g = nextGaussian;
+	    nextGaussian = Double.NaN;
+	    return g;
+	}
+	//Marsaglia's polar method
+	double v1, v2, s;
+	do{
+	    v1 = 2 * nextDouble() - 1;
+	    v2 = 2 * nextDouble() - 1;
+	    s = v1 * v1 + v2 * v2;
+	}while (s >= 1 || s == 0);
+	double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+	nextGaussian = v2 * multiplier;
+	return v1 * multiplier;
+    }
+
+    /**
+     * Forget the second value of the polar method (when the generator is repositioned)
+     */
+    protected final void clearGaussian(){
+	nextGaussian = Double.NaN;
+    }
+
+    public final void setSeed(int seed){
+	setSeed((long)seed);
+    }
+
+    public final void setSeed(int[] seed){
+	long combined = 0;
+	for (int s : seed)
+	    combined = combined * 0x9e3779b97f4a7c15L + s;
+	setSeed(combined);
+    }
+
+    /**
+     * The finalizer of MurmurHash3 as modified by D. Stafford (variant 13), used by SplitMix64
+     * @param z the value to mix
+     * @return the mixed value
+     */
+    static long mix64(long z){
+	z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+	z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+	return z ^ (z >>> 31);
+    }
+
+    /**
+     * Create the root generator of the type chosen in the config
+     * @param type the generator type (not THREAD_LOCAL, which is not splittable)
+     * @param seed the seed
+     * @return the new generator
+     */
+    public static SplittableRandomGenerator create(RandomGeneratorType type, long seed){
+	switch(type){
+	case SPLITMIX64:
+	    return new SplitMix64Generator(seed);
+	case XOSHIRO256:
+	    return new Xoshiro256StarStarGenerator(seed);
+	case PHILOX:
+	    return new PhiloxGenerator(seed, 0);
+	default:
+	    throw new IllegalArgumentException(type + " is not a splittable generator");
+	}
+    }
+}
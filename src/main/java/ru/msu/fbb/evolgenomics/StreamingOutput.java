@@ -0,0 +1,288 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.*;
+
+/**
+ * The output of the STREAMING OUTPUT_MODE.  Each simulation instance is handed over (see streamed()) as soon as
+ * it is done, and a writer thread spills its output to a temporary file, after which the instance
+ * can go.  The instances are started only when there is room for them (acquireSlot()): at most
+ * numThreads of them wait for the writer on top of the numThreads being simulated, so a slow writer
+ * holds up the simulation rather than letting the finished instances pile up in memory.
+ * Once all the instances are spilled, finish() writes the merged files, in the same layout as the MERGED mode.
+ *
+ * The spill file holds one block per instance, in the order they are done: the packed sequences
+ * of the output nodes (see PackedSeq.writeWords()), all of the same size, then, if landscape
+ * info is printed, the change times and fitnesses of each output node.  Only the start of each
+ * block (and the lengths of the landscape info records) is kept in memory.  The merge goes
+ * through the output nodes in batches of about BATCH_SIZE bytes of records, reading each
+ * instance's part of a batch at once (see merge()).
+ */
+public class StreamingOutput{
+    private static final int BATCH_SIZE = 1 << 26; //the bytes of sequence records the merge reads at once (64 MB)
+
+    private final CompiledTree tree;
+    private final int numInstances;
+    private final int[] outputNodes; //the retained nodes, in the output order
+    private final Semaphore slots;
+    private final BlockingQueue<EvolutionaryProcess> done;
+    private final Thread writer;
+    private final Charset charset = Charset.defaultCharset(); //as FastaWriter encodes the text
+
+    private final File spillFile;
+    private final FileChannel spill;
+    private long spillEnd = 0;
+    private final long[] blockStart; //by instance id
+    private final int[] seqLength; //by instance id
+    private final int[][] infoLength; //by instance id, the change times and fitness record lengths of each output node
+    private volatile Throwable failure; //of the writer thread or of a simulation instance
+
+    /**
+     * Create the spill file and start the writer thread
+     * @param tree the tree
+     * @param numInstances the number of simulation instances
+     * @param numThreads the number of simulation threads
+     */
+    public StreamingOutput(CompiledTree tree, int numInstances, int numThreads) throws IOException{
+	this.tree = tree;
+	this.numInstances = numInstances;
+	int numOutput = 0;
+	int[] order = tree.getOutputOrder();
+	int[] retained = new int[order.length];
+	for (int node : order)
+	    if (Parameters.isRetained(node))
+		retained[numOutput++] = node;
+	outputNodes = java.util.Arrays.copyOf(retained, numOutput);
+	slots = new Semaphore(2*numThreads);
+	done = new ArrayBlockingQueue<EvolutionaryProcess>(numThreads);
+	blockStart = new long[numInstances];
+	seqLength = new int[numInstances];
+	infoLength = new int[numInstances][];
+	spillFile = File.createTempFile("selva", ".spill", new File("."));
+	spillFile.deleteOnExit();
+	spill = new RandomAccessFile(spillFile, "rw").getChannel();
+	writer = new Thread(new Runnable(){
+		public void run(){spillAll();}
+	    }, "output writer");
+	writer.start();
+    }
+
+    /**
+     * Wait until there is room for another instance
+     * @throws IOException if spilling has failed, so there is no point in going on
+     */
+    public void acquireSlot() throws InterruptedException, IOException{
+	slots.acquire();
+	checkFailure();
+    }
+
+    private void checkFailure() throws IOException{
+	if (failure != null)
+	    throw new IOException("the streamed run failed: " + failure, failure);
+    }
+
+    /**
+     * @param process a simulation instance
+     * @return the task that runs the instance (unless the run has failed),
+     * then hands it over to the writer thread (waiting if it is behind);
+     * if the instance fails, so does the run
+     */
+    public Runnable streamed(final EvolutionaryProcess process){
+	return new Runnable(){
+	    public void run(){
+		try{
+		    if (failure == null)
+			process.run();
+		}catch(Throwable e){
+		    failure = e;
+		}finally{
+		    try{
+			done.put(process);
+		    }catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		    }
+		}
+	    }
+	};
+    }
+
+    /**
+     * Spill the instances as they come; once the run has failed (even with an Error), the rest are only let go,
+     * so that the simulation threads waiting for the writer are not stuck
+     */
+    private void spillAll(){
+	for (int n = 0; n < numInstances; n++){
+	    EvolutionaryProcess process;
+	    try{
+		process = done.take();
+	    }catch(InterruptedException e){
+		failure = e;
+		return;
+	    }
+	    try{
+		if (failure == null)
+		    spill(process);
+	    }catch(Throwable e){
+		failure = e;
+	    }finally{
+		slots.release();
+	    }
+	}
+    }
+
+    /**
+     * Write the block of one instance at the end of the spill file
+     * @param process the finished instance
+     */
+    private void spill(EvolutionaryProcess process) throws IOException{
+	int i = process.id;
+	blockStart[i] = spillEnd;
+	if (outputNodes.length > 0){
+	    PackedSeq first = process.node2seq[outputNodes[0]];
+	    seqLength[i] = first.length();
+	    ByteBuffer record = ByteBuffer.allocate(8*first.getNumWords());
+	    for (int node : outputNodes){
+		record.clear();
+		process.node2seq[node].writeWords(record.asLongBuffer());
+		write(record);
+	    }
+	}
+	if (Parameters.printFitnessInfo()){
+	    infoLength[i] = new int[2*outputNodes.length];
+	    for (int k = 0; k < outputNodes.length; k++){
+		byte[] changeTimes = (process.changeTracker.getChangeTimes(outputNodes[k]) + "; ").getBytes(charset);
+		byte[] fitnesses = (process.changeTracker.getFitnesses(outputNodes[k]) + "; ").getBytes(charset);
+		infoLength[i][2*k] = changeTimes.length;
+		infoLength[i][2*k + 1] = fitnesses.length;
+		write(ByteBuffer.wrap(changeTimes));
+		write(ByteBuffer.wrap(fitnesses));
+	    }
+	}
+	if (i == 0 && Parameters.collectStats())
+	    System.err.println("landscape " + i + ": " + process.changeTracker.count + " changes");
+    }
+
+    private void write(ByteBuffer buffer) throws IOException{
+	while (buffer.hasRemaining())
+	    spillEnd += spill.write(buffer, spillEnd);
+    }
+
+    /**
+     * Read length bytes of the spill file into the buffer, at offset
+     */
+    private void read(ByteBuffer buffer, int offset, long position, int length) throws IOException{
+	buffer.limit(offset + length);
+	buffer.position(offset);
+	while (buffer.hasRemaining()){
+	    int n = spill.read(buffer, position);
+	    if (n < 0)
+		throw new EOFException("spill file " + spillFile + " is truncated");
+	    position += n;
+	}
+    }
+
+    /**
+     * Wait for the writer thread to spill all the instances, then write the merged files
+     * and delete the spill file
+     */
+    public void finish() throws InterruptedException, IOException{
+	writer.join();
+	try{
+	    checkFailure();
+	    merge();
+	}finally{
+	    spill.close();
+	    spillFile.delete();
+	}
+    }
+
+    /**
+     * Write the merged files, a batch of output nodes at a time: the records of the nodes of a batch
+     * are next to each other in every instance's block, so each instance's part of the batch
+     * (and of its landscape info) is read with a single sequential read
+     */
+    private void merge() throws IOException{
+	//each file has its own writer thread
+	FastaWriter seqWriter = new FastaWriter("allnodes.merged.fasta");
+	FastaWriter changeTimeWriter = null;
+	FastaWriter fitnessWriter = null;
+	if (Parameters.printFitnessInfo()){
+	    changeTimeWriter = new FastaWriter("changetimes.merged.fasta");
+	    fitnessWriter = new FastaWriter("fitnesses.merged.fasta");
+	}
+	int[] recordSize = new int[numInstances]; //of the packed sequences of each instance
+	long[] infoPos = new long[numInstances]; //the landscape info of each instance comes after its sequences
+	long nodeSize = 0; //of the records of one node in all the instances
+	int sitesPerWord = 64 / PackedSeq.getBitsPerSite(Parameters.getAlphabetSize());
+	for (int i = 0; i < numInstances; i++){
+	    recordSize[i] = 8*((seqLength[i] + sitesPerWord - 1) / sitesPerWord);
+	    infoPos[i] = blockStart[i] + (long)outputNodes.length * recordSize[i];
+	    nodeSize += recordSize[i];
+	}
+	int batchNodes = (int)Math.max(1, Math.min(outputNodes.length, BATCH_SIZE / Math.max(1, nodeSize)));
+	ByteBuffer batch = ByteBuffer.allocate(0);
+	LongBuffer[] words = new LongBuffer[numInstances]; //each instance's records of the batch, read in turn
+	int[] infoOffset = new int[numInstances]; //where each instance's next landscape info record is in the batch
+	for (int first = 0; first < outputNodes.length; first += batchNodes){
+	    int end = Math.min(first + batchNodes, outputNodes.length);
+	    //lay the batch out: the records of each instance, then its landscape info records
+	    int[] seqOffset = new int[numInstances];
+	    int[] infoSize = new int[numInstances];
+	    long size = 0;
+	    for (int i = 0; i < numInstances; i++){
+		seqOffset[i] = (int)size;
+		size += (long)(end - first) * recordSize[i];
+		if (Parameters.printFitnessInfo()){
+		    for (int k = first; k < end; k++)
+			infoSize[i] += infoLength[i][2*k] + infoLength[i][2*k + 1];
+		    infoOffset[i] = (int)size;
+		    size += infoSize[i];
+		}
+	    }
+	    if (size > Integer.MAX_VALUE)
+		throw new IOException("the records of output node " + tree.getName(outputNodes[first]) + " don't fit in a buffer");
+	    if (batch.capacity() < size)
+		batch = ByteBuffer.allocate((int)size);
+	    for (int i = 0; i < numInstances; i++){
+		int length = (end - first) * recordSize[i];
+		read(batch, seqOffset[i], blockStart[i] + (long)first * recordSize[i], length);
+		batch.position(seqOffset[i]);
+		words[i] = batch.slice().asLongBuffer();
+		if (Parameters.printFitnessInfo()){
+		    read(batch, infoOffset[i], infoPos[i], infoSize[i]);
+		    infoPos[i] += infoSize[i];
+		}
+	    }
+	    for (int k = first; k < end; k++){
+		String nodeName = tree.getName(outputNodes[k]);
+		seqWriter.writeHeader(nodeName);
+		if (Parameters.printFitnessInfo()){
+		    changeTimeWriter.writeHeader(nodeName);
+		    fitnessWriter.writeHeader(nodeName);
+		}
+		for (int i = 0; i < numInstances; i++){
+		    seqWriter.writeSequence(words[i], seqLength[i]);
+		    if (Parameters.printFitnessInfo()){
+			for (int j = 0; j < 2; j++){
+			    int length = infoLength[i][2*k + j];
+			    (j == 0 ? changeTimeWriter : fitnessWriter).write(batch.array(), infoOffset[i], length);
+			    infoOffset[i] += length;
+			}
+		    }
+		}
+		seqWriter.newLine();
+		if (Parameters.printFitnessInfo()){
+		    fitnessWriter.newLine();
+		    changeTimeWriter.newLine();
+		}
+	    }
+	}
+	seqWriter.close();
+	if (Parameters.printFitnessInfo()){
+	    fitnessWriter.close();
+	    changeTimeWriter.close();
+	}
+    }
+}
@@ -4,13 +4,15 @@
 import java.util.*;
 class Branch implements Comparable<Branch>{
     int [] arr;
-    BasicNode node;
-    Branch(BasicNode node, int seqLength){
+    String name; //the name of the node at the end of the branch
+    double length;
+    Branch(String name, double length, int seqLength){
 	arr = new int[seqLength];
-	this.node = node;
+	this.name = name;
+	this.length = length;
     }
     double getLength(){
-	return node.getLength();
+	return length;
     }
     static String getHeader(){
 	return "avg_total_hits\tavg_observed_hits\tnum_nonobserved_hits\tnum_multihit_positions";
@@ -46,7 +48,7 @@ class Branch implements Comparable<Branch>{
 	return count;
     }
     public int compareTo(Branch other){
-	double diff = this.node.getLength()-other.node.getLength();
+	double diff = this.length-other.length;
 	if (diff < 0)
 	    return -1;
 	else if (diff > 0)
@@ -58,37 +60,33 @@ class Branch implements Comparable<Branch>{
 
 public class SubstitutionAnalyzer{
 
-    private static HashMap <String, Branch >  node2branch;
+    private static Branch[] node2branch; //by node id
     private static int seqLength;
     private static int[] totalCounter;
     private static int sumSubstitutions=0;
     
-    public static void init(BasicTree  tree, int seqLength){	
-	node2branch = new  HashMap<String, Branch>(tree.getNumNodes()*2);
-	for (BasicNode node2 : tree.getNodes() ){
-	    BasicNode node = (BasicNode)node2;
-	    node2branch.put(node.toString(), new Branch(node,seqLength));
-	}
+    public static void init(CompiledTree  tree, int seqLength){	
+	node2branch = new Branch[tree.getNumNodes()];
+	for (int v = 0; v < tree.getNumNodes(); v++)
+	    node2branch[v] = new Branch(tree.getName(v), tree.getBranchLength(v), seqLength);
 	totalCounter = new int[seqLength];
 	SubstitutionAnalyzer.seqLength = seqLength;
 	sumSubstitutions=0;
     }
     
-    public static void registerSubstitution(String nodeName, int position){
-	Branch branch = node2branch.get(nodeName);
-	branch.arr[position]++;
-	node2branch.put(nodeName, branch);
+    public static void registerSubstitution(int node, int position){
+	node2branch[node].arr[position]++;
 	totalCounter[position]++;
 	sumSubstitutions++;
     }
     public static void substitutionStats(){
 	System.err.println("average substitutions per tree: " + ((double)sumSubstitutions/(double) seqLength));
-	Branch[] branchArr = node2branch.values().toArray(new Branch[node2branch.size()] );
+	Branch[] branchArr = Arrays.copyOf(node2branch, node2branch.length);
 	Arrays.sort(branchArr);
 	System.out.println("branch\tlength\t" + Branch.getHeader());
 
 	for (Branch branch: branchArr){
-	    System.out.println(branch.node.toString()+"\t"+branch.getLength() + "\t" + branch.getStats() );
+	    System.out.println(branch.name+"\t"+branch.getLength() + "\t" + branch.getStats() );
 	}
 	//see the number of multiple hits per branch, compare with branch length
     }
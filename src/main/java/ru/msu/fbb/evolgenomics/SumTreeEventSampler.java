@@ -0,0 +1,45 @@
+/**
+ * EventSampler keeping the rate of every position in a RateSumTree.
+ * Drawing an event and updating it after a substitution both take O(log seqLength).
+ * @see RateSumTree
+ */
+public class SumTreeEventSampler implements EventSampler{
+    private RateSumTree changeRates; //the position substitution rates and the landscape change rate
+    private int seqLength;
+
+    /**
+     * @param seqLength the sequence length
+     */
+    public SumTreeEventSampler(int seqLength){
+	this.seqLength = seqLength;
+	changeRates = new RateSumTree(seqLength+1);
+    }
+
+    private SumTreeEventSampler(SumTreeEventSampler orig){
+	seqLength = orig.seqLength;
+	changeRates = new RateSumTree(orig.changeRates);
+    }
+
+    public void computeRates(PackedSeq seq, Landscape landscape, double landscapeChangeRate){
+	for (int i = 0; i < seqLength; i++){
+	    int curChar = seq.get(i);
+	    changeRates.setLeaf(i, -landscape.Qat(curChar,curChar));
+	}
+	changeRates.setLeaf(seqLength, landscapeChangeRate);
+	changeRates.rebuild();
+    }
+
+    public void registerSubstitution(int position, byte oldChar, byte newChar, Landscape landscape){
+	changeRates.update(position, -landscape.Qat(newChar,newChar));
+    }
+
+    public double getSumRates(){return changeRates.getSum();}
+
+    public int sample(RandomNumberGenerator random){
+	return changeRates.sample(random);
+    }
+
+    public EventSampler copy(){
+	return new SumTreeEventSampler(this);
+    }
+}
@@ -0,0 +1,24 @@
+/**
+ * Enum class for the TRAVERSAL options (the order in which the tree branches are simulated):
+ * BFS keeps a queue of the frontier nodes, each with its sequence and rates,
+ * DFS goes depth-first, so that only the nodes on the path to the current one are kept,
+ * and the rates are recomputed from the sequence when a branch is entered
+ */
+
+public enum Traversal{
+    BFS, DFS;
+
+    /**
+     * Return the enum corresponding to the given string (case-insensitive)
+     * @param value the string to convert to enum
+     * @throws UnrecognizedValueException if the string is not recognized
+     */
+    static Traversal stringToEnum(String value){
+	try{
+	    return valueOf(value.toUpperCase());
+	}
+	catch(IllegalArgumentException e){
+	    throw new UnrecognizedValueException("TRAVERSAL", value);
+	}
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * The xoshiro256** generator (Blackman and Vigna 2018), with a 256-bit state.
+ * split() hands out a copy of the current state and then jumps this generator
+ * ahead by 2^128 outputs, so the streams of the instances never overlap.
+ */
+public final class Xoshiro256StarStarGenerator extends SplittableRandomGenerator{
+    private static final long[] JUMP = {0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL,
+					0xa9582618e03fc9aaL, 0x39abdc4529b1661cL};
+    private long s0, s1, s2, s3;
+
+    /**
+     * @param seed the seed (expanded to the full state with SplitMix64)
+     */
+    public Xoshiro256StarStarGenerator(long seed){
+	setSeed(seed);
+    }
+
+    private Xoshiro256StarStarGenerator(long s0, long s1, long s2, long s3){
+	this.s0 = s0;
+	this.s1 = s1;
+	this.s2 = s2;
+	this.s3 = s3;
+    }
+
+    public void setSeed(long seed){
+	SplitMix64Generator expander = new SplitMix64Generator(seed);
+	s0 = expander.nextLong();
+	s1 = expander.nextLong();
+	s2 = expander.nextLong();
+	s3 = expander.nextLong();
+    }
+
+    public long nextLong(){
+	long result = Long.rotateLeft(s1 * 5, 7) * 9;
+	long t = s1 << 17;
+	s2 ^= s0;
+	s3 ^= s1;
+	s1 ^= s2;
+	s0 ^= s3;
+	s2 ^= t;
+	s3 = Long.rotateLeft(s3, 45);
+	return result;
+    }
+
+    public SplittableRandomGenerator split(){
+	SplittableRandomGenerator child = new Xoshiro256StarStarGenerator(s0, s1, s2, s3);
+	jump();
+	return child;
+    }
+
+    /**
+     * Advance the state by 2^128 outputs
+     */
+    private void jump(){
+	long t0 = 0, t1 = 0, t2 = 0, t3 = 0;
+	for (long jump : JUMP){
+	    for (int b = 0; b < 64; b++){
+		if ((jump & (1L << b)) != 0){
+		    t0 ^= s0;
+		    t1 ^= s1;
+		    t2 ^= s2;
+		    t3 ^= s3;
+		}
+		nextLong();
+	    }
+	}
+	s0 = t0;
+	s1 = t1;
+	s2 = t2;
+	s3 = t3;
+    }
+}